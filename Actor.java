@@ -1,66 +1,33 @@
 package parallel.actor;
 
-import java.lang.reflect.Method;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-
-class Dispatcher {
-    static final Dispatcher instance = new Dispatcher();
-    private ExecutorService pool = Executors.newFixedThreadPool(10);
-
-    private Dispatcher() {}
-
-    void readyToExecute(Actor actor) {
-        if (actor.exited()) return;
-        if (actor.getContext().status.compareAndExchange(ActorContext.WAITING, ActorContext.EXECUTING) == ActorContext.WAITING)
-            pool.submit(() -> Dispatcher.instance.execute(actor));
-    }
-
-    private void execute(Actor actor) {
-        actor.handle();
-        if (actor.exited()) {
-            actor.getContext().status.set(ActorContext.EXITED);
-        } else {
-            actor.getContext().status.set(ActorContext.WAITING);
-            if (actor.getMessageCount() > 0) readyToExecute(actor);
-        }
-    }
-}
-
-class ActorContext {
-    static final int WAITING = 0;
-    static final int EXECUTING = 1;
-    static final int EXITED = 2;
-    AtomicInteger status = new AtomicInteger();
-    ActorContext() {
-        this.status.set(WAITING);
-    }
-}
-
-class Message {
-    Method method;
-    Object[] arguments;
-    Message(Class<?> type, String method, Object... arguments) {
-        this.arguments = arguments;
-        Class<?>[] parameterTypes = new Class[arguments.length];
-        for (int i = 0; i < arguments.length; i ++) parameterTypes[i] = arguments[i].getClass();
-        try {
-            this.method = type.getDeclaredMethod(method, parameterTypes);
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-    }
-}
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Actor {
     private final Class<? extends Actor> type;
-    private boolean exited;
+    private final DispatchTable table;
+    private final Dispatcher dispatcher;
+    private final Mailbox mailbox;
+    private final ActorMetrics metrics;
+    private volatile boolean exited;
     private ActorContext context;
-    private ConcurrentLinkedQueue<Message> mailbox = new ConcurrentLinkedQueue<>();
 
     protected Actor() {
+        this(Dispatcher.defaultDispatcher());
+    }
+
+    protected Actor(Dispatcher dispatcher) {
+        this(dispatcher, Mailbox.unbounded());
+    }
+
+    protected Actor(Dispatcher dispatcher, Mailbox mailbox) {
+        mailbox.attach();
         this.type = getClass();
+        this.table = DispatchTable.of(type);
+        this.dispatcher = dispatcher;
+        this.mailbox = mailbox;
         this.context = new ActorContext();
+        this.metrics = ActorMetrics.ENABLED ? new ActorMetrics(type, table, mailbox) : null;
     }
 
     boolean exited() {
@@ -68,27 +35,212 @@ public abstract class Actor {
     }
 
     int getMessageCount() {
-        return mailbox.size();
+        return mailbox.depth();
+    }
+
+    boolean hasMessages() {
+        return !mailbox.isEmpty();
     }
 
     ActorContext getContext() {
         return context;
     }
 
+    /**
+     * Stops the actor after the current handler. Messages still queued are not handled: asks among them fail with
+     * an IllegalStateException and onUndelivered sees the rest.
+     */
     protected void exit() {
         exited = true;
+        // Outside of a handler no activation is left to end it
+        if (context.status.compareAndSet(ActorContext.WAITING, ActorContext.EXITED)) terminated();
+    }
+
+    /**
+     * Sets how many messages this actor handles per scheduling before yielding its thread.
+     */
+    protected final void setThroughput(int messages) {
+        setThroughput(messages, Duration.ZERO);
+    }
+
+    /**
+     * Sets how many messages this actor handles per scheduling, and for how long at most,
+     * before yielding its thread. A zero budget leaves the batch bounded by count only.
+     */
+    protected final void setThroughput(int messages, Duration budget) {
+        if (messages < 1) throw new IllegalArgumentException("Throughput must be positive: " + messages);
+        if (budget.isNegative()) throw new IllegalArgumentException("Negative time budget: " + budget);
+        context.throughput = messages;
+        context.budget = budget.toNanos();
+    }
+
+    boolean handle() {
+        Message m = mailbox.poll(this);
+        if (m == null) return false;
+        if (ActorMetrics.ENABLED) metrics.handle(this, m, dispatcher.metrics());
+        else invoke(m);
+        return true;
+    }
+
+    void invoke(Message m) {
+        Object result;
+        try {
+            result = table.invoke(this, m);
+        } catch (Throwable e) {
+            if (m.reply != null) m.reply.fail(e);
+            else onMessageError(e);
+            return;
+        }
+        if (m.reply != null) m.reply.settle(result);
+    }
+
+    /**
+     * Called by the dispatcher once the actor has exited.
+     */
+    void terminated() {
+        mailbox.close();
+        if (metrics != null) metrics.unregister();
+        rejectQueued();
+    }
+
+    /**
+     * Fails the messages queued in the mailbox of the exited actor. Whichever thread takes the actor from EXITED
+     * drains it, the dispatcher or a producer whose message got in after the actor exited, one at a time.
+     */
+    private void rejectQueued() {
+        while (context.status.compareAndSet(ActorContext.EXITED, ActorContext.EXECUTING)) {
+            for (Message m; (m = mailbox.poll(this)) != null; ) undelivered(m, "Actor exited");
+            context.status.set(ActorContext.EXITED);
+            // A message linked while draining is seen here, or by its producer
+            if (mailbox.isEmpty()) return;
+        }
+    }
+
+    /**
+     * Hands a message that will not be handled to onUndelivered, then fails its ask.
+     */
+    void undelivered(Message m, String reason) {
+        try {
+            onUndelivered(m.arguments != null ? m.arguments : new Object[] {m.o0, m.o1, m.o2});
+        } catch (Throwable e) {
+            onMessageError(e);
+        }
+        if (m.reply != null) m.reply.fail(new IllegalStateException(reason));
+    }
+
+    /**
+     * Posts a message to be handled by the method of this actor with the given name, choosing
+     * the most specific overload the arguments apply to. Boxed arguments match primitive parameters, widened like
+     * Java widens primitives: an Integer is passed to a long parameter.
+     *
+     * @return false if the actor has exited or its mailbox discarded the message
+     * @throws IllegalArgumentException if no such method accepts the arguments, or none of those that do is more
+     *                                  specific than all the others
+     * @throws IllegalStateException if the mailbox is full and configured to fail
+     */
+    public boolean post(String method, Object... arguments) {
+        if (exited) return false;
+        return enqueue(new Message(table.resolve(method, arguments), arguments));
+    }
+
+    /**
+     * Posts a message like {@link #post} and returns a future of the handler's result, which is null for void
+     * handlers and is flattened when the handler returns a CompletionStage. The future fails with the handler's
+     * exception, or if the message is not delivered.
+     */
+    public <R> CompletableFuture<R> ask(String method, Object... arguments) {
+        return ask(Duration.ZERO, method, arguments);
+    }
+
+    /**
+     * Like {@link #ask(String, Object...)}, but the future fails with a TimeoutException if there is no reply
+     * in time. A zero timeout waits forever.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> ask(Duration timeout, String method, Object... arguments) {
+        Message m = new Message(table.resolve(method, arguments), arguments);
+        return (CompletableFuture<R>) (CompletableFuture<?>) request(m, timeout.toNanos());
     }
 
-    void handle() {
-        Message m = mailbox.poll();
-        executeMethod(m.method, m.arguments);
+    /**
+     * Returns an implementation of the protocol interface whose every call posts a message to the method of this
+     * actor with the same name and parameter types. Calls of up to three parameters neither allocate an argument
+     * array nor box. Protocol methods return void, boolean for what post would have returned, or a
+     * CompletableFuture or CompletionStage to ask instead of post.
+     * The protocol must be public, and is checked against this actor's methods here rather than at each call.
+     *
+     * @throws IllegalArgumentException if a protocol method has no matching handler
+     */
+    public final <T> T proxy(Class<T> protocol) {
+        return proxy(protocol, Duration.ZERO);
     }
 
-    public void post(String method, Object... arguments) {
-        if (exited) return;
-        this.mailbox.add(new Message(type, method, arguments));
-        Dispatcher.instance.readyToExecute(this);
+    /**
+     * Like {@link #proxy(Class)}, with the timeout of the asks made through the proxy.
+     */
+    public final <T> T proxy(Class<T> protocol, Duration askTimeout) {
+        return ProxyGenerator.proxy(this, table, protocol, askTimeout.toNanos(), false);
     }
 
-    protected abstract void executeMethod(Method m, Object[] arguments);
+    /**
+     * Like {@link #proxy(Class)}, but its posts are queued even if the mailbox is full: they never block nor get
+     * dropped by the overflow policy. For the actor's own messages from threads that must not wait on it, such as
+     * an event loop or a timer, while others' posts stay bounded.
+     */
+    protected final <T> T unboundedProxy(Class<T> protocol) {
+        return ProxyGenerator.proxy(this, table, protocol, 0, true);
+    }
+
+    boolean enqueue(Message m) {
+        return enqueue(m, false);
+    }
+
+    boolean enqueue(Message m, boolean unbounded) {
+        if (ActorMetrics.ENABLED) m.enqueuedAt = System.nanoTime();
+        if (exited || !mailbox.offer(m, unbounded)) return false;
+        if (exited) {
+            // Exited between the check and the offer: the message is queued, and rejected like the others
+            if (m.reply != null) m.reply.fail(new IllegalStateException("Actor exited"));
+            rejectQueued();
+            return true;
+        }
+        dispatcher.readyToExecute(this);
+        return true;
+    }
+
+    CompletableFuture<Object> request(Message m, long timeoutNanos) {
+        Reply reply = new Reply(timeoutNanos);
+        m.reply = reply;
+        if (!enqueue(m)) reply.fail(new IllegalStateException("Message not delivered"));
+        return reply;
+    }
+
+    /**
+     * Called on the actor's thread after each batch of messages, before it yields the thread:
+     * the place to flush what the handlers of the batch buffered.
+     */
+    protected void onBatchEnd() {}
+
+    void batchEnded() {
+        try {
+            onBatchEnd();
+        } catch (Throwable e) {
+            onMessageError(e);
+        }
+    }
+
+    /**
+     * Called for each message left queued when the actor exits, or discarded from the head of a DROP_OLDEST
+     * mailbox, with its arguments, references only for those posted through a proxy: the place to release what
+     * they hold. It may run on the thread of a producer racing with the exit, but never at the same time as a
+     * handler or another call of it.
+     */
+    protected void onUndelivered(Object[] arguments) {}
+
+    /**
+     * Called on the actor's thread when a handler throws.
+     */
+    protected void onMessageError(Throwable e) {
+        e.printStackTrace();
+    }
 }
@@ -0,0 +1,16 @@
+package parallel.actor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ActorContext {
+    static final int WAITING = 0;
+    static final int EXECUTING = 1;
+    static final int EXITED = 2;
+    static final int DEFAULT_THROUGHPUT = 16;
+    AtomicInteger status = new AtomicInteger();
+    volatile int throughput = DEFAULT_THROUGHPUT;
+    volatile long budget;
+    ActorContext() {
+        this.status.set(WAITING);
+    }
+}
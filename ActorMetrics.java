@@ -0,0 +1,111 @@
+package parallel.actor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.*;
+
+/*
+ * Instrumentation of the actor runtime, off unless the JVM runs with -Dparallel.actor.metrics=true. The flag is
+ * a constant, so when it is off the JIT removes every instrumented branch. When on, every actor and dispatcher
+ * registers an MXBean, and each handled message records its latencies and emits a parallel.actor.Message JFR event.
+ */
+class ActorMetrics implements ActorMetricsMXBean {
+    static final boolean ENABLED = Boolean.getBoolean("parallel.actor.metrics");
+    private static final AtomicLong ids = new AtomicLong();
+
+    @Name("parallel.actor.Message")
+    @Label("Actor Message")
+    @Category("Actor")
+    @Description("A message handled by an actor")
+    @StackTrace(false)
+    static class MessageEvent extends Event {
+        @Label("Actor")
+        String actor;
+        @Label("Handler")
+        String handler;
+        @Label("Queue Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueLatency;
+    }
+
+    private final Class<?> type;
+    private final DispatchTable table;
+    private final Mailbox mailbox;
+    private final ObjectName name;
+    // Only written by the actor's activation
+    private volatile long handled;
+
+    ActorMetrics(Class<?> type, DispatchTable table, Mailbox mailbox) {
+        this.type = type;
+        this.table = table;
+        this.mailbox = mailbox;
+        this.name = register(this, "Actor", type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName());
+    }
+
+    void handle(Actor actor, Message m, DispatcherMetrics dispatcher) {
+        MessageEvent event = new MessageEvent();
+        event.begin();
+        long start = System.nanoTime();
+        actor.invoke(m);
+        long end = System.nanoTime();
+        event.end();
+        handled ++;
+        dispatcher.record(start - m.enqueuedAt, end - start);
+        if (event.shouldCommit()) {
+            event.actor = type.getName();
+            event.handler = table.name(m.handler);
+            event.queueLatency = start - m.enqueuedAt;
+            event.commit();
+        }
+    }
+
+    void unregister() {
+        unregister(name);
+    }
+
+    @Override
+    public String getActorClass() {
+        return type.getName();
+    }
+
+    @Override
+    public long getMessagesHandled() {
+        return handled;
+    }
+
+    @Override
+    public int getMailboxDepth() {
+        return mailbox.depth();
+    }
+
+    @Override
+    public int getMailboxHighWaterMark() {
+        return mailbox.highWaterMark();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return mailbox.dropped();
+    }
+
+    static ObjectName register(Object mbean, String type, String name) {
+        try {
+            ObjectName objectName = new ObjectName("parallel.actor:type=" + type + ",name=" + ObjectName.quote(name)
+                    + ",id=" + ids.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Metrics registration failed for " + name, e);
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Already unregistered
+        }
+    }
+}
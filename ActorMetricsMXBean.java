@@ -0,0 +1,16 @@
+package parallel.actor;
+
+/*
+ * Per-actor counters, registered under parallel.actor:type=Actor when metrics are enabled.
+ */
+public interface ActorMetricsMXBean {
+    String getActorClass();
+
+    long getMessagesHandled();
+
+    int getMailboxDepth();
+
+    int getMailboxHighWaterMark();
+
+    long getMessagesDropped();
+}
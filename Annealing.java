@@ -1,18 +1,20 @@
 package Playground;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.function.*;
+import java.util.stream.IntStream;
 
 /*
  * Simple mathematical function graph drawer using annealing algorithm
  */
 
 public class Annealing {
-    interface FourthFunction<A, B, C, D, R> {R apply(A a, B b, C c, D d);}
-    interface FifthFunction<A, B, C, D, E, R> {R apply(A a, B b, C c, D d, E e);}
+    // Points per task, fixed so that a seed gives the same points on any number of cores
+    private static final int CHUNK = 4096;
 
     static class Point {
         double x, y;
@@ -21,72 +23,176 @@ public class Annealing {
             this.y = y;
         }
     }
+    /*
+     *   java Playground.Annealing [-size 50] [-decay 0.999] [-out out.bin] [-snapshot steps] [-resume] [-csv out.csv] [equation]
+     *   java Playground.Annealing export out.bin out.csv
+     *
+     * Points go to a FrameFile, every -snapshot temperature steps and at the end. -resume continues the run from
+     * its last frame, -csv exports the last frame for MATLAB.
+     */
     public static void main(String[] args) {
-        final int size = 50;
-        double xLower = -10, xUpper = 10, xStep = (xUpper -xLower) / size;
-        double yLower = -10, yUpper = 10, yStep = (yUpper -yLower) / size;
-
-        final BiFunction<Double, Double, Double> f = (x, y) ->
-                Math.sin(x) - y;
-                // Math.sin(x*x+y*y) - Math.cos(x*y);
-                // Math.abs(Math.sin(x*x-y*y)) - Math.sin(x+y) - Math.cos(x*y);
-                // Math.exp(Math.sin(x) + Math.cos(y)) - Math.sin(Math.exp(x+y));
-                // Math.sin(Math.sin(x) + Math.cos(y)) - Math.cos(Math.sin(x*y) + Math.cos(x));
-                // Math.cos(Math.cos(Math.min(y+Math.sin(x), x+Math.sin(y)))) - Math.cos(Math.sin(Math.max(x+Math.sin(y), y+Math.sin(x))));
-        final Function<Point, Double> potential = p -> Math.abs(f.apply(p.x, p.y));
-
-        List<Point> points = new ArrayList<>(size * size);
-        for (double x = xLower; x < xUpper; x += xStep) for (double y = yLower; y < yUpper; y += yStep) points.add(new Point(x, y));
-
+        int size = 50, every = 0;
         // Decay -> Quality: 0.99 -> low, 0.999 -> Med, 0.9999 -> High
-        annealing(points, potential, 1000, 1, 0.999, new Point(xLower, yLower), new Point(xUpper, yUpper));
-
-        StringBuilder xStr = new StringBuilder();
-        StringBuilder yStr = new StringBuilder();
-        xStr.append("x = [");
-        yStr.append("y = [");
-        points.forEach(p -> {
-            xStr.append(p.x).append(',');
-            yStr.append(p.y).append(',');
-        });
-        xStr.replace(xStr.length() - 1, xStr.length(), "]");
-        yStr.replace(yStr.length() - 1, yStr.length(), "]");
-
-        List<String> lines = new ArrayList<>();
-        lines.add(xStr.toString());
-        lines.add(yStr.toString());
-        Path out = Paths.get("out.txt");
+        double decay = 0.999;
+        Path out = Paths.get("out.bin"), csv = null;
+        boolean resume = false;
+        List<String> equation = new ArrayList<>();
         try {
-            Files.write(out, lines, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            for (int i = 0; i < args.length; i ++) {
+                switch (args[i]) {
+                    case "-size": size = Integer.parseInt(args[++ i]); break;
+                    case "-decay": decay = Double.parseDouble(args[++ i]); break;
+                    case "-out": out = Paths.get(args[++ i]); break;
+                    case "-csv": csv = Paths.get(args[++ i]); break;
+                    case "-snapshot": every = Integer.parseInt(args[++ i]); break;
+                    case "-resume": resume = true; break;
+                    case "export":
+                        FrameFile.exportCsv(Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+                        return;
+                    default: equation.add(args[i]);
+                }
+            }
+            double xLower = -10, xUpper = 10, xStep = (xUpper -xLower) / size;
+            double yLower = -10, yUpper = 10, yStep = (yUpper -yLower) / size;
+
+            // The implicit equation to draw, f(x, y) or lhs = rhs
+            final String f = !equation.isEmpty() ? String.join(" ", equation) :
+                    "sin(x) = y";
+                    // "sin(x*x+y*y) - cos(x*y)"
+                    // "abs(sin(x*x-y*y)) - sin(x+y) - cos(x*y)"
+                    // "exp(sin(x) + cos(y)) - sin(exp(x+y))"
+                    // "sin(sin(x) + cos(y)) - cos(sin(x*y) + cos(x))"
+                    // "cos(cos(min(y+sin(x), x+sin(y)))) - cos(sin(max(x+sin(y), y+sin(x))))"
+            final DoubleBinaryOperator potential = Expression.potential(f);
+
+            double[] xs = new double[size * size], ys = new double[size * size];
+            for (int i = 0; i < size; i ++) for (int j = 0; j < size; j ++) {
+                xs[i * size + j] = xLower + i * xStep;
+                ys[i * size + j] = yLower + j * yStep;
+            }
+
+            long start = System.nanoTime();
+            try (FrameFile frames = resume ? FrameFile.resume(out, xs, ys) : FrameFile.create(out, xs.length, System.nanoTime())) {
+                if (resume) System.out.println("Resuming from step " + frames.step() + " at T = " + frames.temperature());
+                annealing(xs, ys, potential, 1000, 1, decay, new Point(xLower, yLower), new Point(xUpper, yUpper), frames, every);
+            }
+            System.out.printf("Annealed %d points in %.2f s%n", xs.length, (System.nanoTime() - start) / 1e9);
+            // M = readmatrix('out.csv'); scatter(M(:, 1), M(:, 2), 1) IN MATLAB
+            if (csv != null) FrameFile.exportCsv(out, csv);
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        // scatter(x, y, 1) IN MATLAB
+    /**
+     * Anneals the points (xs[i], ys[i]) in place towards the minima of the potential, on every core, from the last
+     * frame appended to the file, or from the start if there is none, appending them every given number of steps
+     * and at the end. The points depend only on the seed of the file and the arguments.
+     *
+     * @param every number of steps between frames, 0 for the last one only
+     */
+    static void annealing(double[] xs, double[] ys, DoubleBinaryOperator potential, double startT, double endT, double decay, Point leftLower, Point upperHigher, FrameFile frames, int every) throws IOException {
+        long step = frames.step();
+        // A resumed run carries on with other random streams than it would have
+        Run r = new Run(xs, ys, potential, leftLower, upperHigher, frames.seed() ^ step);
+        try {
+            r.anneal(startT, endT, decay, step, step == 0 ? startT : frames.temperature() * decay, frames, every);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    static void annealing(List<Point> points, Function<Point, Double> potential, double startT, double endT, double decay, Point leftLower, Point upperHigher) {
-        double xLower = leftLower.x, xUpper = upperHigher.x, yLower = leftLower.y, yUpper = upperHigher.y;
-        final double Kb = 1.38064852E-23;
-        final BiFunction<Double, Double, Double> metropolis = (delE, T) -> Math.exp(-delE/(T*Kb));
-        final BiFunction<Double, Double, Double> random = (l, u) -> l + Math.random() * (u - l);
-        final FourthFunction<Double, Double, Double, Double, Double> restrictedRandom = (x, r, xl, xu) ->
-                random.apply(Math.max(xl, x - r), Math.min(xu, x + r));
-        final FifthFunction<Double, Double, Double, Double, Double, Double> restriction = (t, st, et, l, u) ->
-                (u - l) * Math.log(t/et) / Math.log(st/et);
-        for (double T = startT; T > endT; T *= decay) {
-            for (Point p : points) {
-                Point next = new Point(
-                        restrictedRandom.apply(p.x, restriction.apply(T, startT, endT, xLower, xUpper), xLower, xUpper),
-                        restrictedRandom.apply(p.y, restriction.apply(T, startT, endT, yLower, yUpper), yLower, yUpper)
-                );
-                double delE = potential.apply(next) - potential.apply(p);
-                if (Math.random() < metropolis.apply(delE, T)) {
-                    p.x = next.x;
-                    p.y = next.y;
+    /*
+     * The points are independent of one another, so they are split in chunks moved in parallel, each with a random
+     * stream of its own. All chunks finish a temperature step before the next one starts.
+     */
+    private static final class Run {
+        private static final double Kb = 1.38064852E-23;
+
+        final double[] xs, ys, energies;
+        final DoubleBinaryOperator potential;
+        final double xLower, xUpper, yLower, yUpper;
+        final Chunk[] chunks;
+        // Of the current step
+        double T, xRadius, yRadius;
+
+        Run(double[] xs, double[] ys, DoubleBinaryOperator potential, Point leftLower, Point upperHigher, long seed) {
+            this.xs = xs;
+            this.ys = ys;
+            this.energies = new double[xs.length];
+            this.potential = potential;
+            xLower = leftLower.x;
+            xUpper = upperHigher.x;
+            yLower = leftLower.y;
+            yUpper = upperHigher.y;
+            SplittableRandom random = new SplittableRandom(seed);
+            chunks = new Chunk[(xs.length + CHUNK - 1) / CHUNK];
+            for (int i = 0; i < chunks.length; i ++) chunks[i] = new Chunk(i * CHUNK, Math.min(xs.length, (i + 1) * CHUNK), random.split());
+        }
+
+        /**
+         * Anneals from the given step and its temperature on.
+         */
+        void anneal(double startT, double endT, double decay, long step, double fromT, FrameFile frames, int every) {
+            double logRange = Math.log(startT / endT);
+            double T = fromT;
+            for (; T > endT; T *= decay) {
+                // Moves shrink from the whole range at startT to nothing at endT
+                double restriction = Math.log(T / endT) / logRange;
+                this.T = T;
+                xRadius = (xUpper - xLower) * restriction;
+                yRadius = (yUpper - yLower) * restriction;
+                // On the fork/join common pool, the calling thread included
+                if (chunks.length == 1) chunks[0].move();
+                else if (chunks.length > 1) IntStream.range(0, chunks.length).parallel().forEach(i -> chunks[i].move());
+                if (++ step % 1000 == 0) System.out.println(T);
+                // Between steps, with every chunk done
+                if (every > 0 && step % every == 0) append(frames, step, T);
+            }
+            if (frames.step() != step) append(frames, step, T / decay);
+        }
+
+        private void append(FrameFile frames, long step, double T) {
+            try {
+                frames.append(step, T, xs, ys);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private final class Chunk {
+            final int from, to;
+            final SplittableRandom random;
+            boolean started;
+
+            Chunk(int from, int to, SplittableRandom random) {
+                this.from = from;
+                this.to = to;
+                this.random = random;
+            }
+
+            void move() {
+                if (!started) {
+                    started = true;
+                    for (int i = from; i < to; i ++) energies[i] = potential.applyAsDouble(xs[i], ys[i]);
                 }
+                double T = Run.this.T, xr = xRadius, yr = yRadius;
+                for (int i = from; i < to; i ++) {
+                    double x = restrictedRandom(xs[i], xr, xLower, xUpper), y = restrictedRandom(ys[i], yr, yLower, yUpper);
+                    double energy = potential.applyAsDouble(x, y), delE = energy - energies[i];
+                    // Moving down is always accepted, as exp(-delE/(T*Kb)) is then at least 1
+                    if (delE <= 0 || random.nextDouble() < Math.exp(-delE / (T * Kb))) {
+                        xs[i] = x;
+                        ys[i] = y;
+                        energies[i] = energy;
+                    }
+                }
+            }
+
+            private double restrictedRandom(double x, double r, double l, double u) {
+                double lower = Math.max(l, x - r);
+                return lower + random.nextDouble() * (Math.min(u, x + r) - lower);
             }
-            System.out.println(T);
         }
     }
 }
@@ -0,0 +1,216 @@
+package net.websocket;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.websocket.WebSocketServer.LogLevel;
+
+/*
+ * Log lines go into a bounded ring without locks and a background thread formats and writes them in batches, so
+ * logging threads never wait for the output. A full ring drops lines rather than block, reporting how many.
+ *
+ * The ring is a multi-producer single-consumer array queue: every slot carries the sequence number at which it
+ * is free to claim, then full, so producers only contend on claiming the tail.
+ */
+final class AsyncLogger {
+    private static final int CAPACITY = 1 << 14;
+    private static final int BATCH = 64 << 10;
+    private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final class Entry {
+        volatile long sequence;
+        long time;
+        LogLevel level;
+        String message;
+        Throwable error;
+    }
+
+    private final Entry[] ring = new Entry[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private final Thread writer;
+    private volatile LogLevel level = LogLevel.INFO;
+    private final AtomicReference<OutputStream> nextOutput = new AtomicReference<>();
+    private volatile boolean closed;
+    private volatile long written;
+    // Writer thread only
+    private OutputStream output;
+    private boolean ownsOutput;
+    private long head, second = Long.MIN_VALUE;
+    private String secondPrefix;
+    private final StringBuilder batch = new StringBuilder();
+
+    AsyncLogger(OutputStream output, String name) {
+        this.output = output;
+        for (int i = 0; i < CAPACITY; i ++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i;
+        }
+        writer = new Thread(this::run, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    boolean enabled(LogLevel l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Writes the lines logged from now on to the file, closing the previous file. A file replaced again before
+     * the writer took it is closed unused.
+     */
+    void setFile(OutputStream file) {
+        OutputStream replaced = nextOutput.getAndSet(file);
+        if (replaced != null) close(replaced);
+        wake();
+    }
+
+    void log(LogLevel l, String message, Throwable error) {
+        if (!enabled(l) || closed) return;
+        Entry slot;
+        long t;
+        while (true) {
+            t = tail.get();
+            slot = ring[(int) t & (CAPACITY - 1)];
+            long sequence = slot.sequence;
+            if (sequence < t) {
+                // Still holding the line from one lap ago
+                dropped.incrementAndGet();
+                return;
+            }
+            if (sequence == t && tail.compareAndSet(t, t + 1)) break;
+        }
+        slot.time = System.currentTimeMillis();
+        slot.level = l;
+        slot.message = message;
+        slot.error = error;
+        slot.sequence = t + 1;
+        wake();
+    }
+
+    /**
+     * Waits up to a second for the lines logged so far to be written.
+     */
+    void flush() {
+        long target = tail.get(), deadline = System.nanoTime() + 1_000_000_000L;
+        LockSupport.unpark(writer);
+        while (written < target && System.nanoTime() - deadline < 0) LockSupport.parkNanos(1_000_000L);
+    }
+
+    /**
+     * Writes the lines logged so far, waiting up to a second, then stops the writer thread and closes the file
+     * it was given, if any, waiting up to another second for it. Lines logged from then on are dropped.
+     */
+    void close() {
+        flush();
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void wake() {
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) LockSupport.unpark(writer);
+    }
+
+    private void run() {
+        while (!closed) {
+            if (nextOutput.get() != null) switchOutput();
+            if (drain()) continue;
+            sleeping.set(true);
+            // Anything published before the flag was set is seen here, anything after unparks
+            if (!ready() && !closed) LockSupport.parkNanos(this, 1_000_000_000L);
+            sleeping.set(false);
+        }
+        // Lines that got in while closing
+        drain();
+        if (ownsOutput) close(output);
+    }
+
+    private boolean ready() {
+        return ring[(int) head & (CAPACITY - 1)].sequence == head + 1 || nextOutput.get() != null;
+    }
+
+    /**
+     * @return whether there were lines to write
+     */
+    private boolean drain() {
+        long start = head;
+        for (Entry slot; (slot = ring[(int) head & (CAPACITY - 1)]).sequence == head + 1; ) {
+            // Read after the line, so a line logged after setFile returned goes to the new file
+            if (nextOutput.get() != null) switchOutput();
+            format(slot);
+            slot.message = null;
+            slot.error = null;
+            slot.sequence = head + CAPACITY;
+            head ++;
+            if (batch.length() >= BATCH) write();
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) line(System.currentTimeMillis(), LogLevel.WARN).append(lost).append(" log lines dropped\n");
+        if (batch.length() > 0) write();
+        return head != start;
+    }
+
+    private void switchOutput() {
+        if (batch.length() > 0) write();
+        OutputStream next = nextOutput.getAndSet(null);
+        if (ownsOutput) close(output);
+        output = next;
+        ownsOutput = true;
+    }
+
+    private void format(Entry e) {
+        line(e.time, e.level).append(e.message).append('\n');
+        if (e.error != null) {
+            StringWriter trace = new StringWriter();
+            e.error.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+    }
+
+    private StringBuilder line(long time, LogLevel l) {
+        // The date and time only change once a second
+        if (time / 1000 != second) {
+            second = time / 1000;
+            secondPrefix = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(SECONDS);
+        }
+        long millis = time % 1000;
+        return batch.append('[').append(secondPrefix).append('.')
+                .append(millis < 100 ? millis < 10 ? "00" : "0" : "").append(millis)
+                .append("] ").append(l).append(' ');
+    }
+
+    private void write() {
+        try {
+            output.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+        batch.setLength(0);
+        written = head;
+    }
+
+    private static void close(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Nowhere left to report it
+        }
+    }
+}
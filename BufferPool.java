@@ -0,0 +1,58 @@
+package net.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Buffers for frame payloads, pooled in power of two size classes on the heap and off it, so that connections
+ * reuse them instead of allocating an array per frame. Buffers are released by whichever thread is done with them.
+ *
+ * Each class keeps a bounded number of buffers, fewer the larger they are. Beyond the largest class buffers are
+ * not pooled and always on the heap, as direct memory is only given back by a collection.
+ */
+final class BufferPool {
+    private static final int MIN_SHIFT = 7, MAX_SHIFT = 20;
+    // Bytes kept per size class
+    private static final int RETAINED = 2 << 20;
+    private static final BufferPool HEAP = new BufferPool(), DIRECT = new BufferPool();
+
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+
+    @SuppressWarnings("unchecked")
+    private BufferPool() {
+        classes = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i ++) classes[i] = new ArrayBlockingQueue<>(Math.max(2, RETAINED >> (MIN_SHIFT + i)));
+    }
+
+    /**
+     * A buffer with position 0 and limit size.
+     *
+     * @param direct whether to take it off the heap, unless it is larger than the largest size class
+     */
+    static ByteBuffer acquire(int size, boolean direct) {
+        if (size > 1 << MAX_SHIFT) return ByteBuffer.allocate(size);
+        BufferPool pool = direct ? DIRECT : HEAP;
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        ByteBuffer b = pool.classes[shift - MIN_SHIFT].poll();
+        if (b == null) b = direct ? ByteBuffer.allocateDirect(1 << shift) : ByteBuffer.allocate(1 << shift);
+        return b.clear().limit(size);
+    }
+
+    /**
+     * Gives the buffer back once nothing refers to it any more. Buffers of other sizes are left to the collector.
+     */
+    static void release(ByteBuffer b) {
+        int capacity = b.capacity();
+        if (b.isReadOnly() || Integer.bitCount(capacity) != 1 || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT) return;
+        BufferPool pool = b.isDirect() ? DIRECT : HEAP;
+        pool.classes[Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT].offer(b);
+    }
+
+    /**
+     * The number of buffers kept in the size class of the size, to tell when one has been given back.
+     */
+    static int pooled(int size, boolean direct) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (direct ? DIRECT : HEAP).classes[shift - MIN_SHIFT].size();
+    }
+}
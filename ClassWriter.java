@@ -0,0 +1,221 @@
+package parallel.actor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/*
+ * A minimal class file writer for the hidden classes of actor proxies generated at runtime. It writes a constant
+ * pool with int constants, private final fields and methods of straight-line code, so no stack map frames, in the
+ * Java 17 format. Code tracks the locals it uses and the stack depth it is told about.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+    static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+    static final int ILOAD = 0x15, LLOAD = 0x16, FLOAD = 0x17, DLOAD = 0x18, ALOAD = 0x19, ASTORE = 0x3a;
+    static final int AASTORE = 0x53, POP = 0x57, DUP = 0x59, I2L = 0x85;
+    static final int IRETURN = 0xac, ARETURN = 0xb0, RETURN = 0xb1;
+    static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb, ANEWARRAY = 0xbd, WIDE = 0xc4;
+    static final String OBJECT = "java/lang/Object";
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fields = new DataOutputStream(fieldBytes);
+    private final List<byte[]> methods = new ArrayList<>();
+    private final int thisClass, superClass;
+    private final int[] interfaces;
+    private int poolCount = 1, fieldCount;
+
+    /**
+     * A public final class, the names internal ones like "java/lang/Object".
+     */
+    ClassWriter(String name, String superName, String... interfaces) {
+        thisClass = cls(name);
+        superClass = cls(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i ++) this.interfaces[i] = cls(interfaces[i]);
+    }
+
+    void field(String name, String descriptor) {
+        try {
+            fields.writeShort(ACC_PRIVATE | ACC_FINAL);
+            fields.writeShort(utf8(name));
+            fields.writeShort(utf8(descriptor));
+            fields.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount ++;
+    }
+
+    /**
+     * A public method of the code.
+     */
+    void method(String name, String descriptor, Code c) {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            byte[] code = c.bytes.toByteArray();
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(c.maxStack);
+            out.writeShort(c.locals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+            methods.add(b.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    byte[] toBytes() {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(b);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61); // Java 17
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) out.writeShort(i);
+            out.writeShort(fieldCount);
+            out.write(fieldBytes.toByteArray());
+            out.writeShort(methods.size());
+            for (byte[] m : methods) out.write(m);
+            out.writeShort(0);
+            return b.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int cls(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    int integer(int value) {
+        Integer index = entries.get("I" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put("I" + value, poolCount);
+        return poolCount ++;
+    }
+
+    private int utf8(String s) {
+        Integer index = entries.get("U" + s);
+        if (index != null) return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put("U" + s, poolCount);
+        return poolCount ++;
+    }
+
+    private int entry(String key, int tag, int a, int b) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(a);
+            if (b >= 0) pool.writeShort(b);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount ++;
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int nameAndType = entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        return entry(tag + owner + "." + name + ":" + descriptor, tag, cls(owner), nameAndType);
+    }
+
+    /*
+     * The code of a method, with the number of local slots it uses and the deepest its stack gets.
+     */
+    final class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int locals, stack, maxStack;
+
+        /**
+         * @param parameters the slots of this and the parameters
+         */
+        Code(int parameters) {
+            this.locals = parameters;
+        }
+
+        /**
+         * A fresh local of one slot, or two for a long or a double.
+         */
+        int local(int slots) {
+            locals += slots;
+            return locals - slots;
+        }
+
+        /**
+         * Moves the stack depth by the slots the next instruction pushes, or pops if negative.
+         */
+        Code stack(int slots) {
+            stack += slots;
+            maxStack = Math.max(maxStack, stack);
+            return this;
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        /**
+         * A load or store of a local.
+         */
+        Code op(int opcode, int local) {
+            if (local > 255) return op(WIDE).op(opcode).u2(local);
+            return op(opcode).op(local);
+        }
+
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        Code push(int value) {
+            if (value >= -1 && value <= 5) return op(ICONST_0 + value);
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) return op(BIPUSH).op(value & 0xff);
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) return op(SIPUSH).u2(value);
+            return op(LDC_W).u2(integer(value));
+        }
+
+        Code field(int opcode, String owner, String name, String descriptor) {
+            return op(opcode).u2(member(9, owner, name, descriptor));
+        }
+
+        Code invoke(int opcode, String owner, String name, String descriptor) {
+            return op(opcode).u2(member(10, owner, name, descriptor));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package parallel.actor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/*
+ * Handlers of an actor class, resolved once per class and shared by all its instances.
+ * Every non-static method declared below Actor is a handler, addressed by its index.
+ */
+class DispatchTable {
+    private static final ClassValue<DispatchTable> tables = new ClassValue<>() {
+        @Override
+        protected DispatchTable computeValue(Class<?> type) {
+            return new DispatchTable(type);
+        }
+    };
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Actor.class, Object[].class);
+    private static final MethodType INLINE_INVOKER_TYPE = MethodType.methodType(Object.class, Actor.class, Message.class);
+    // The primitive widening conversions of Java, between wrappers
+    private static final Map<Class<?>, Set<Class<?>>> WIDENING = Map.of(
+            Byte.class, Set.of(Short.class, Integer.class, Long.class, Float.class, Double.class),
+            Short.class, Set.of(Integer.class, Long.class, Float.class, Double.class),
+            Character.class, Set.of(Integer.class, Long.class, Float.class, Double.class),
+            Integer.class, Set.of(Long.class, Float.class, Double.class),
+            Long.class, Set.of(Float.class, Double.class),
+            Float.class, Set.of(Double.class));
+
+    static DispatchTable of(Class<?> type) {
+        return tables.get(type);
+    }
+
+    static class Handler {
+        final int id;
+        final String name;
+        final Class<?>[] parameterTypes;
+        final MethodHandle invoker;
+        // Reads the arguments a proxy stored inline in the Message, null above Message.INLINE_ARGUMENTS
+        final MethodHandle inlineInvoker;
+
+        Handler(int id, Method m) throws ReflectiveOperationException {
+            this.id = id;
+            this.name = m.getName();
+            this.parameterTypes = m.getParameterTypes();
+            m.setAccessible(true);
+            MethodHandle target = MethodHandles.lookup().unreflect(m);
+            this.invoker = target
+                    .asSpreader(Object[].class, parameterTypes.length)
+                    .asType(INVOKER_TYPE);
+            this.inlineInvoker = parameterTypes.length <= Message.INLINE_ARGUMENTS ? inline(target) : null;
+        }
+
+        private MethodHandle inline(MethodHandle target) throws ReflectiveOperationException {
+            int n = parameterTypes.length;
+            MethodHandle[] slots = new MethodHandle[n];
+            int[] reorder = new int[n + 1];
+            for (int i = 0; i < n; i ++) {
+                slots[i] = slot(i, parameterTypes[i]);
+                reorder[i + 1] = 1;
+            }
+            MethodHandle h = target.asType(target.type().changeParameterType(0, Actor.class).changeReturnType(Object.class));
+            return MethodHandles.permuteArguments(MethodHandles.filterArguments(h, 1, slots), INLINE_INVOKER_TYPE, reorder);
+        }
+
+        private static MethodHandle slot(int i, Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            if (!type.isPrimitive())
+                return lookup.findGetter(Message.class, "o" + i, Object.class).asType(MethodType.methodType(type, Message.class));
+            MethodHandle bits = lookup.findGetter(Message.class, "p" + i, long.class);
+            if (type == double.class)
+                return MethodHandles.filterReturnValue(bits,
+                        lookup.findStatic(Double.class, "longBitsToDouble", MethodType.methodType(double.class, long.class)));
+            if (type == float.class)
+                return MethodHandles.filterReturnValue(
+                        MethodHandles.explicitCastArguments(bits, MethodType.methodType(int.class, Message.class)),
+                        lookup.findStatic(Float.class, "intBitsToFloat", MethodType.methodType(float.class, int.class)));
+            // Narrowing; booleans were stored as 0 or 1 and convert by their low bit
+            return MethodHandles.explicitCastArguments(bits, MethodType.methodType(type, Message.class));
+        }
+
+        boolean accepts(Object[] arguments) {
+            if (arguments.length != parameterTypes.length) return false;
+            for (int i = 0; i < arguments.length; i ++) {
+                Class<?> p = parameterTypes[i];
+                if (arguments[i] == null) {
+                    if (p.isPrimitive()) return false;
+                } else if (!assignable(arguments[i].getClass(), p)) return false;
+            }
+            return true;
+        }
+
+        boolean moreSpecificThan(Handler other) {
+            for (int i = 0; i < parameterTypes.length; i ++)
+                if (!assignable(parameterTypes[i], other.parameterTypes[i])) return false;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner j = new StringJoiner(", ", name + "(", ")");
+            for (Class<?> p : parameterTypes) j.add(p.getSimpleName());
+            return j.toString();
+        }
+    }
+
+    private final Class<?> type;
+    private final Handler[] handlers;
+    private final Map<String, Handler[]> byName = new HashMap<>();
+
+    private DispatchTable(Class<?> type) {
+        this.type = type;
+        Set<String> seen = new HashSet<>();
+        for (Method m : Actor.class.getDeclaredMethods()) seen.add(signature(m));
+        List<Handler> list = new ArrayList<>();
+        Map<String, List<Handler>> names = new HashMap<>();
+        // Subclasses first, so overriding methods shadow the ones they override
+        for (Class<?> c = type; c != Actor.class && c != null; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                if (Modifier.isStatic(m.getModifiers()) || m.isSynthetic() || m.isBridge()) continue;
+                if (!seen.add(signature(m))) continue;
+                try {
+                    Handler h = new Handler(list.size(), m);
+                    list.add(h);
+                    names.computeIfAbsent(h.name, n -> new ArrayList<>()).add(h);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Handler not accessible: " + m, e);
+                }
+            }
+        }
+        handlers = list.toArray(new Handler[0]);
+        names.forEach((name, hs) -> byName.put(name, hs.toArray(new Handler[0])));
+    }
+
+    int resolve(String name, Object[] arguments) {
+        Handler[] candidates = byName.get(name);
+        if (candidates == null)
+            throw new IllegalArgumentException("No handler named " + name + " in " + type.getName());
+        Handler best = null;
+        for (Handler h : candidates)
+            if (h.accepts(arguments) && (best == null || h.moreSpecificThan(best))) best = h;
+        if (best == null)
+            throw new IllegalArgumentException("No handler " + name + " in " + type.getName()
+                    + " accepts " + Arrays.toString(argumentTypes(arguments)));
+        // Like Java, only if it is more specific than every other that applies, and they are not all the same
+        for (Handler h : candidates)
+            if (h != best && h.accepts(arguments) && (!best.moreSpecificThan(h) || h.moreSpecificThan(best)))
+                throw new IllegalArgumentException("Ambiguous handlers " + best + " and " + h + " in " + type.getName()
+                        + " for " + Arrays.toString(argumentTypes(arguments)));
+        return best.id;
+    }
+
+    /**
+     * @return the handler with exactly these parameter types, or -1
+     */
+    int find(String name, Class<?>[] parameterTypes) {
+        Handler[] candidates = byName.get(name);
+        if (candidates != null)
+            for (Handler h : candidates)
+                if (Arrays.equals(h.parameterTypes, parameterTypes)) return h.id;
+        return -1;
+    }
+
+    String name(int handler) {
+        return handlers[handler].toString();
+    }
+
+    Object invoke(Actor actor, Message m) throws Throwable {
+        Handler h = handlers[m.handler];
+        if (m.arguments == null) return (Object) h.inlineInvoker.invokeExact(actor, m);
+        return (Object) h.invoker.invokeExact(actor, m.arguments);
+    }
+
+    private static String signature(Method m) {
+        return m.getName() + Arrays.toString(m.getParameterTypes());
+    }
+
+    private static String[] argumentTypes(Object[] arguments) {
+        String[] types = new String[arguments.length];
+        for (int i = 0; i < arguments.length; i ++)
+            types[i] = arguments[i] == null ? "null" : arguments[i].getClass().getSimpleName();
+        return types;
+    }
+
+    /**
+     * Whether a value of the type passes for a parameter of the other, as a reference or, boxed or not, widened
+     * to a primitive parameter like Java widens primitives: an Integer goes to a long, not to a Long.
+     */
+    private static boolean assignable(Class<?> from, Class<?> to) {
+        if (box(to).isAssignableFrom(box(from))) return true;
+        return to.isPrimitive() && WIDENING.getOrDefault(box(from), Set.of()).contains(box(to));
+    }
+
+    static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == byte.class) return Byte.class;
+        if (type == short.class) return Short.class;
+        if (type == char.class) return Character.class;
+        return Void.class;
+    }
+}
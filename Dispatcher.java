@@ -0,0 +1,247 @@
+package parallel.actor;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs actors on threads. An actor is scheduled as one task whenever its mailbox becomes non-empty,
+ * drains a batch of messages and reschedules itself if more arrived meanwhile.
+ */
+public abstract class Dispatcher implements AutoCloseable {
+    private static class Default {
+        static final Dispatcher instance = forkJoin(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The work-stealing dispatcher used by actors that do not choose their own, with one thread per processor.
+     */
+    public static Dispatcher defaultDispatcher() {
+        return Default.instance;
+    }
+
+    /**
+     * A work-stealing pool in async (FIFO) mode. Actors rescheduled from a worker stay on its local queue
+     * and idle workers steal them.
+     */
+    public static Dispatcher forkJoin(int parallelism) {
+        AtomicInteger count = new AtomicInteger();
+        return new ExecutorDispatcher("actor-fj", new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("actor-fj-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }, null, true));
+    }
+
+    /**
+     * A pool of a fixed number of platform threads sharing one queue.
+     */
+    public static Dispatcher fixed(int threads) {
+        return new ExecutorDispatcher("actor-fixed", Executors.newFixedThreadPool(threads, daemonThreads("actor-fixed-")));
+    }
+
+    /**
+     * Starts a new virtual thread for every activation of an actor.
+     */
+    public static Dispatcher virtualThreads() {
+        return new ExecutorDispatcher("actor-virtual",
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("actor-virtual-", 0).factory()));
+    }
+
+    /**
+     * A single dedicated thread, for a hot actor that should not compete with others for a pool.
+     */
+    public static Dispatcher pinned(String name) {
+        return new ExecutorDispatcher(name, Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    /**
+     * Dispatches on an executor owned by the returned dispatcher, which shuts it down.
+     */
+    public static Dispatcher of(ExecutorService executor) {
+        return new ExecutorDispatcher("actor-executor", executor);
+    }
+
+    /**
+     * How long {@link #close()} waits for running activations, before and after interrupting them.
+     */
+    public static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final AtomicInteger unnamed = new AtomicInteger();
+    private final String name;
+    private volatile DispatcherMetrics metrics;
+
+    protected Dispatcher(String name) {
+        this.name = name;
+    }
+
+    protected Dispatcher() {
+        this("dispatcher-" + unnamed.getAndIncrement());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of threads of the pool, for metrics. -1 when the dispatcher has no fixed pool.
+     */
+    protected int poolSize() {
+        return -1;
+    }
+
+    /**
+     * Runs the task asynchronously.
+     *
+     * @throws RejectedExecutionException if the dispatcher has been shut down
+     */
+    protected abstract void schedule(Runnable task);
+
+    /**
+     * Stops accepting activations. Those already scheduled still run.
+     */
+    public abstract void shutdown();
+
+    /**
+     * Stops accepting activations, drops those not yet started and interrupts those running.
+     * Actors whose activation was dropped keep their messages but never run again.
+     */
+    public abstract void shutdownNow();
+
+    public abstract boolean awaitTermination(Duration timeout) throws InterruptedException;
+
+    /**
+     * Shuts down and waits for the activations already scheduled, for {@link #CLOSE_TIMEOUT} at most.
+     * Past that, or if the calling thread is interrupted while waiting, interrupts those still running with
+     * {@link #shutdownNow()} and waits as long again before returning, terminated or not.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        boolean interrupted = false;
+        try {
+            if (awaitTermination(CLOSE_TIMEOUT)) return;
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        shutdownNow();
+        try {
+            awaitTermination(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    final void readyToExecute(Actor actor) {
+        if (actor.exited()) return;
+        ActorContext context = actor.getContext();
+        if (context.status.compareAndExchange(ActorContext.WAITING, ActorContext.EXECUTING) == ActorContext.WAITING) {
+            try {
+                schedule(() -> execute(actor));
+            } catch (RejectedExecutionException e) {
+                // Shut down: the messages stay queued
+                context.status.set(ActorContext.WAITING);
+            }
+        }
+    }
+
+    /**
+     * Registered on first use, as the constructor cannot hand out this before subclasses are initialized.
+     */
+    final DispatcherMetrics metrics() {
+        DispatcherMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if ((m = metrics) == null) metrics = m = new DispatcherMetrics(this);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Stops collecting metrics, for implementations to call when shutting down.
+     */
+    protected final void unregisterMetrics() {
+        DispatcherMetrics m = metrics;
+        if (m != null) m.unregister();
+    }
+
+    private void execute(Actor actor) {
+        ActorContext context = actor.getContext();
+        int throughput = context.throughput;
+        long budget = context.budget;
+        long deadline = budget > 0 ? System.nanoTime() + budget : 0;
+        if (ActorMetrics.ENABLED) metrics().activationStarted();
+        // Drain a batch, then go to the back of the queue so other actors get their turn
+        for (int n = 0; n < throughput && !actor.exited() && actor.handle(); n ++)
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) break;
+        if (!actor.exited()) actor.batchEnded();
+        if (ActorMetrics.ENABLED) metrics().activationFinished();
+        if (actor.exited()) {
+            context.status.set(ActorContext.EXITED);
+            actor.terminated();
+        } else {
+            // A post racing with this transition either sees WAITING and schedules, or is seen here
+            context.status.set(ActorContext.WAITING);
+            // So is an exit from another thread, which could not take the actor while it was executing
+            if (actor.exited()) {
+                if (context.status.compareAndSet(ActorContext.WAITING, ActorContext.EXITED)) actor.terminated();
+            } else if (actor.hasMessages()) {
+                readyToExecute(actor);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
+
+class ExecutorDispatcher extends Dispatcher {
+    private final ExecutorService executor;
+
+    ExecutorDispatcher(String name, ExecutorService executor) {
+        super(name);
+        this.executor = executor;
+    }
+
+    @Override
+    protected int poolSize() {
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getPoolSize();
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getPoolSize();
+        return -1;
+    }
+
+    @Override
+    protected void schedule(Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        unregisterMetrics();
+    }
+
+    @Override
+    public void shutdownNow() {
+        executor.shutdownNow();
+        unregisterMetrics();
+    }
+
+    @Override
+    public boolean awaitTermination(Duration timeout) throws InterruptedException {
+        return executor.awaitTermination(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+}
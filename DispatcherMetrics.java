@@ -0,0 +1,131 @@
+package parallel.actor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+class DispatcherMetrics implements DispatcherMetricsMXBean {
+    private final Dispatcher dispatcher;
+    private final ObjectName name;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder activations = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final Histogram queueLatency = new Histogram();
+    private final Histogram executionTime = new Histogram();
+
+    DispatcherMetrics(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.name = ActorMetrics.register(this, "Dispatcher", dispatcher.getName());
+    }
+
+    void activationStarted() {
+        active.getAndIncrement();
+        activations.increment();
+    }
+
+    void activationFinished() {
+        active.getAndDecrement();
+    }
+
+    void record(long queueNanos, long executionNanos) {
+        handled.increment();
+        queueLatency.record(queueNanos);
+        executionTime.record(executionNanos);
+    }
+
+    void unregister() {
+        ActorMetrics.unregister(name);
+    }
+
+    @Override
+    public String getName() {
+        return dispatcher.getName();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return dispatcher.poolSize();
+    }
+
+    @Override
+    public int getActiveThreads() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        int size = dispatcher.poolSize();
+        return size < 0 ? -1 : Math.max(0, size - active.get());
+    }
+
+    @Override
+    public long getActivations() {
+        return activations.sum();
+    }
+
+    @Override
+    public long getMessagesHandled() {
+        return handled.sum();
+    }
+
+    @Override
+    public double getQueueLatencyMean() {
+        return queueLatency.mean() / 1000;
+    }
+
+    @Override
+    public long getQueueLatencyP50() {
+        return micros(queueLatency.percentile(50));
+    }
+
+    @Override
+    public long getQueueLatencyP99() {
+        return micros(queueLatency.percentile(99));
+    }
+
+    @Override
+    public long getQueueLatencyP999() {
+        return micros(queueLatency.percentile(99.9));
+    }
+
+    @Override
+    public long getQueueLatencyMax() {
+        return micros(queueLatency.max());
+    }
+
+    @Override
+    public double getExecutionTimeMean() {
+        return executionTime.mean() / 1000;
+    }
+
+    @Override
+    public long getExecutionTimeP50() {
+        return micros(executionTime.percentile(50));
+    }
+
+    @Override
+    public long getExecutionTimeP99() {
+        return micros(executionTime.percentile(99));
+    }
+
+    @Override
+    public long getExecutionTimeP999() {
+        return micros(executionTime.percentile(99.9));
+    }
+
+    @Override
+    public long getExecutionTimeMax() {
+        return micros(executionTime.max());
+    }
+
+    @Override
+    public void resetLatencies() {
+        queueLatency.reset();
+        executionTime.reset();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,48 @@
+package parallel.actor;
+
+/*
+ * Dispatcher utilisation and message latencies, registered under parallel.actor:type=Dispatcher when metrics
+ * are enabled. Latencies are in microseconds: queue latency from post to the start of the handler,
+ * execution time of the handler itself.
+ */
+public interface DispatcherMetricsMXBean {
+    String getName();
+
+    /**
+     * Threads of the pool, or -1 for dispatchers without a fixed pool.
+     */
+    int getPoolSize();
+
+    int getActiveThreads();
+
+    /**
+     * Pool threads not running an actor, or -1 for dispatchers without a fixed pool.
+     */
+    int getIdleThreads();
+
+    long getActivations();
+
+    long getMessagesHandled();
+
+    double getQueueLatencyMean();
+
+    long getQueueLatencyP50();
+
+    long getQueueLatencyP99();
+
+    long getQueueLatencyP999();
+
+    long getQueueLatencyMax();
+
+    double getExecutionTimeMean();
+
+    long getExecutionTimeP50();
+
+    long getExecutionTimeP99();
+
+    long getExecutionTimeP999();
+
+    long getExecutionTimeMax();
+
+    void resetLatencies();
+}
@@ -0,0 +1,97 @@
+package net.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A server frame serialised once, header and payload, and shared read-only by every connection it is sent to.
+ * Each recipient writes its own view of the buffer and releases the frame once written or dropped, the last
+ * release giving the buffer back to the {@link BufferPool}.
+ */
+final class EncodedFrame {
+    private final ByteBuffer buffer, pooled;
+    private final boolean fin;
+    private final byte opcode;
+    private final int length;
+    private final AtomicInteger references;
+
+    private EncodedFrame(ByteBuffer buffer, ByteBuffer pooled, boolean fin, byte opcode, int length, int references) {
+        this.buffer = buffer;
+        this.pooled = pooled;
+        this.fin = fin;
+        this.opcode = opcode;
+        this.length = length;
+        this.references = new AtomicInteger(references);
+    }
+
+    /**
+     * @param compressed whether the payload is compressed by permessage-deflate, which sets RSV1
+     * @param direct whether to serialise into a direct buffer, which channels write without copying
+     * @param references the number of connections it will be sent to
+     */
+    static EncodedFrame of(boolean fin, byte opcode, byte[] payload, boolean compressed, boolean direct, int references) {
+        int length = payload.length;
+        int header = length <= 125 ? 2 : length <= 65535 ? 4 : 10;
+        ByteBuffer b = BufferPool.acquire(header + length, direct);
+        b.put((byte) ((fin ? 0x80 : 0) | (compressed ? 0x40 : 0) | opcode));
+        if (length <= 125) {
+            b.put((byte) length);
+        } else if (length <= 65535) {
+            b.put((byte) 126);
+            b.putShort((short) length);
+        } else {
+            b.put((byte) 127);
+            b.putLong(length);
+        }
+        b.put(payload);
+        return new EncodedFrame(b.flip().asReadOnlyBuffer(), b, fin, opcode, length, references);
+    }
+
+    /**
+     * Bytes to be written as they are, like a handshake response, going through the same queue as frames.
+     */
+    static EncodedFrame raw(byte[] bytes) {
+        return new EncodedFrame(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), null, true, (byte) -1, bytes.length, 1);
+    }
+
+    /**
+     * A view of the whole frame with a position of its own.
+     */
+    ByteBuffer view() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * The number of bytes to write.
+     */
+    int size() {
+        return buffer.limit();
+    }
+
+    byte opcode() {
+        return opcode;
+    }
+
+    /**
+     * Adds references for more connections, while the caller still holds one.
+     */
+    void retain(int more) {
+        if (references.getAndAdd(more) <= 0) throw new IllegalStateException("Frame retained after its release");
+    }
+
+    /**
+     * @return true if that was the last reference
+     */
+    boolean release() {
+        int left = references.decrementAndGet();
+        if (left < 0) throw new IllegalStateException("Frame released more often than sent");
+        if (left > 0) return false;
+        if (pooled != null) BufferPool.release(pooled);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "[FIN: " + fin + ", opcode: " + opcode + ", MASK: false, length: " + length + "]";
+    }
+}
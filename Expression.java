@@ -0,0 +1,442 @@
+package Playground;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.DoubleBinaryOperator;
+
+/*
+ * Functions of x and y given as text, like "sin(x) - y" or the implicit equation "sin(x) = y" meaning its left
+ * side minus its right side, compiled once to a hidden class implementing DoubleBinaryOperator. The generated
+ * applyAsDouble is as plain as a handwritten lambda, so the JIT inlines it where it is called.
+ *
+ * Expressions have + - * / and ^ for powers, numbers, pi, e, and every double function of java.lang.Math of one
+ * or two arguments, like sin, exp, min or atan2. Parsing shares equal subexpressions, which are computed once
+ * into a local, and folds those of constants.
+ * The generated code is straight-line, so the class file needs no stack map frames.
+ */
+public final class Expression {
+    private static final int CONSTANT = 0, X = 1, Y = 2, NEGATE = 3, ADD = 4, SUBTRACT = 5, MULTIPLY = 6, DIVIDE = 7, CALL = 8;
+
+    private Expression() {}
+
+    /**
+     * The function of x and y the expression is.
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public static DoubleBinaryOperator compile(String source) {
+        return generate(new Parser(source).parse(), source);
+    }
+
+    /**
+     * The absolute value of the function, zero where the implicit equation holds.
+     */
+    public static DoubleBinaryOperator potential(String source) {
+        Parser p = new Parser(source);
+        return generate(p.call("abs", p.parse(), null), source);
+    }
+
+    /*
+     * A node of the expression graph, interned so that equal subexpressions are the same node.
+     */
+    private static final class Node {
+        final int kind, id;
+        final double value;
+        final Method function;
+        final Node a, b;
+        int uses, local = -1;
+
+        Node(int kind, int id, double value, Method function, Node a, Node b) {
+            this.kind = kind;
+            this.id = id;
+            this.value = value;
+            this.function = function;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    private static final class Parser {
+        private final String source;
+        private final Map<String, Node> nodes = new HashMap<>();
+        private int position;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        Node parse() {
+            Node e = sum();
+            if (accept('=')) e = node(SUBTRACT, 0, null, e, sum());
+            skip();
+            if (position < source.length()) throw error("Unexpected '" + source.charAt(position) + "'");
+            return e;
+        }
+
+        private Node sum() {
+            Node e = product();
+            while (true) {
+                if (accept('+')) e = node(ADD, 0, null, e, product());
+                else if (accept('-')) e = node(SUBTRACT, 0, null, e, product());
+                else return e;
+            }
+        }
+
+        private Node product() {
+            Node e = unary();
+            while (true) {
+                if (accept('*')) e = node(MULTIPLY, 0, null, e, unary());
+                else if (accept('/')) e = node(DIVIDE, 0, null, e, unary());
+                else return e;
+            }
+        }
+
+        private Node unary() {
+            if (accept('-')) return node(NEGATE, 0, null, unary(), null);
+            if (accept('+')) return unary();
+            return power();
+        }
+
+        private Node power() {
+            Node e = atom();
+            // Right associative and tighter than a sign: -x^2 is -(x^2)
+            return accept('^') ? call("pow", e, unary()) : e;
+        }
+
+        private Node atom() {
+            skip();
+            if (accept('(')) {
+                Node e = sum();
+                expect(')');
+                return e;
+            }
+            int start = position;
+            if (position < source.length() && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) {
+                while (position < source.length() && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) position ++;
+                if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+                    position ++;
+                    if (position < source.length() && (source.charAt(position) == '+' || source.charAt(position) == '-')) position ++;
+                    while (position < source.length() && Character.isDigit(source.charAt(position))) position ++;
+                }
+                try {
+                    return constant(Double.parseDouble(source.substring(start, position)));
+                } catch (NumberFormatException e) {
+                    position = start;
+                    throw error("Malformed number");
+                }
+            }
+            while (position < source.length() && Character.isLetterOrDigit(source.charAt(position))) position ++;
+            String name = source.substring(start, position);
+            if (name.isEmpty()) throw error(position < source.length() ? "Unexpected '" + source.charAt(position) + "'" : "Unexpected end");
+            if (accept('(')) {
+                Node a = sum(), b = accept(',') ? sum() : null;
+                expect(')');
+                return call(name, a, b);
+            }
+            switch (name) {
+                case "x": return node(X, 0, null, null, null);
+                case "y": return node(Y, 0, null, null, null);
+                case "pi": return constant(Math.PI);
+                case "e": return constant(Math.E);
+                default:
+                    position = start;
+                    throw error("Unknown variable " + name);
+            }
+        }
+
+        Node call(String name, Node a, Node b) {
+            Method function;
+            try {
+                function = b == null ? Math.class.getMethod(name, double.class) : Math.class.getMethod(name, double.class, double.class);
+            } catch (NoSuchMethodException e) {
+                function = null;
+            }
+            if (function == null || function.getReturnType() != double.class || !Modifier.isStatic(function.getModifiers()))
+                throw error("Unknown function " + name + (b == null ? "(x)" : "(x, y)"));
+            if (name.equals("pow") && b.kind == CONSTANT && b.value == 2) return node(MULTIPLY, 0, null, a, a);
+            return node(CALL, 0, function, a, b);
+        }
+
+        private Node constant(double value) {
+            return node(CONSTANT, value, null, null, null);
+        }
+
+        /**
+         * The node, folded if it only has constants, or the equal one already made.
+         */
+        private Node node(int kind, double value, Method function, Node a, Node b) {
+            if (a != null && a.kind == CONSTANT && (b == null || b.kind == CONSTANT)) return constant(fold(kind, function, a.value, b == null ? 0 : b.value));
+            String key = kind + ":" + Double.doubleToRawLongBits(value) + ":" + (function == null ? "" : function.getName())
+                    + ":" + (a == null ? -1 : a.id) + ":" + (b == null ? -1 : b.id);
+            return nodes.computeIfAbsent(key, k -> new Node(kind, nodes.size(), value, function, a, b));
+        }
+
+        private double fold(int kind, Method function, double a, double b) {
+            switch (kind) {
+                case NEGATE: return -a;
+                case ADD: return a + b;
+                case SUBTRACT: return a - b;
+                case MULTIPLY: return a * b;
+                case DIVIDE: return a / b;
+                default:
+                    try {
+                        return (double) (function.getParameterCount() == 1 ? function.invoke(null, a) : function.invoke(null, a, b));
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("Folding failed for " + function.getName(), e);
+                    }
+            }
+        }
+
+        private boolean accept(char c) {
+            skip();
+            if (position < source.length() && source.charAt(position) == c) {
+                position ++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) throw error("Expected '" + c + "'");
+        }
+
+        private void skip() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) position ++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + position + " in " + source);
+        }
+    }
+
+    private static DoubleBinaryOperator generate(Node root, String source) {
+        count(root);
+        ClassFile cf = new ClassFile("Playground/Expression$Compiled");
+        ClassFile.Code c = cf.new Code(5);
+        c.emit(root);
+        c.op(ClassFile.DRETURN);
+        cf.method("applyAsDouble", "(DD)D", c);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cf.toBytes(), true);
+            return (DoubleBinaryOperator) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Compilation failed for " + source, e);
+        }
+    }
+
+    /**
+     * Counts the parents of every node reachable from this one.
+     */
+    private static void count(Node n) {
+        if (n == null || n.uses ++ > 0) return;
+        count(n.a);
+        count(n.b);
+    }
+
+    private static class ClassFile {
+        static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+        static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, LDC2_W = 0x14, DLOAD = 0x18, ALOAD_0 = 0x2a, DSTORE = 0x39, DUP2 = 0x5c;
+        static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+        static final int DRETURN = 0xaf, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+        static final String OBJECT = "java/lang/Object";
+
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private final List<byte[]> methods = new ArrayList<>();
+        private final int thisClass, superClass, iface;
+        private int poolCount = 1;
+
+        ClassFile(String name) {
+            thisClass = cls(name);
+            superClass = cls(OBJECT);
+            iface = cls("java/util/function/DoubleBinaryOperator");
+            Code c = new Code(1);
+            c.op(ALOAD_0, 1).invoke(INVOKESPECIAL, OBJECT, "<init>", "()V", 1, 0).op(RETURN);
+            method("<init>", "()V", c);
+        }
+
+        void method(String name, String descriptor, Code c) {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(b);
+                byte[] code = c.bytes.toByteArray();
+                out.writeShort(ACC_PUBLIC);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + code.length);
+                out.writeShort(Math.max(1, c.maxStack));
+                out.writeShort(c.locals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+                methods.add(b.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] toBytes() {
+            try {
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(b);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(61); // Java 17
+                out.writeShort(poolCount);
+                out.write(poolBytes.toByteArray());
+                out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0); // fields
+                out.writeShort(methods.size());
+                for (byte[] m : methods) out.write(m);
+                out.writeShort(0);
+                return b.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int utf8(String s) {
+            Integer index = entries.get("U" + s);
+            if (index != null) return index;
+            try {
+                pool.writeByte(1);
+                pool.writeUTF(s);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put("U" + s, poolCount);
+            return poolCount ++;
+        }
+
+        private int constant(double value) {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            try {
+                pool.writeByte(6);
+                pool.writeDouble(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, poolCount);
+            // Doubles take two entries
+            poolCount += 2;
+            return poolCount - 2;
+        }
+
+        private int entry(String key, int tag, int a, int b) {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            try {
+                pool.writeByte(tag);
+                pool.writeShort(a);
+                if (b >= 0) pool.writeShort(b);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, poolCount);
+            return poolCount ++;
+        }
+
+        private int cls(String name) {
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        private int method(String owner, String name, String descriptor) {
+            int nameAndType = entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+            return entry("M" + owner + "." + name + ":" + descriptor, 10, cls(owner), nameAndType);
+        }
+
+        /*
+         * Code of a method, tracking its stack depth in slots. x and y are locals 1 and 3 of applyAsDouble.
+         */
+        class Code {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int stack, maxStack, locals;
+
+            Code(int locals) {
+                this.locals = locals;
+            }
+
+            void emit(Node n) {
+                if (n.local >= 0) {
+                    local(DLOAD, n.local, 2);
+                    return;
+                }
+                switch (n.kind) {
+                    case CONSTANT:
+                        if (Double.doubleToRawLongBits(n.value) == 0) op(DCONST_0, 2);
+                        else if (n.value == 1) op(DCONST_1, 2);
+                        else op(LDC2_W, 2).u2(constant(n.value));
+                        return;
+                    case X:
+                        local(DLOAD, 1, 2);
+                        return;
+                    case Y:
+                        local(DLOAD, 3, 2);
+                        return;
+                    case NEGATE:
+                        emit(n.a);
+                        op(DNEG);
+                        break;
+                    case CALL:
+                        emit(n.a);
+                        if (n.b != null) emit(n.b);
+                        invoke(INVOKESTATIC, "java/lang/Math", n.function.getName(), n.b == null ? "(D)D" : "(DD)D", n.b == null ? 2 : 4, 2);
+                        break;
+                    default:
+                        emit(n.a);
+                        emit(n.b);
+                        op(n.kind == ADD ? DADD : n.kind == SUBTRACT ? DSUB : n.kind == MULTIPLY ? DMUL : DDIV, -2);
+                }
+                // Shared nodes are computed on first use, which comes first in the straight-line code
+                if (n.uses > 1) {
+                    n.local = locals;
+                    locals += 2;
+                    op(DUP2, 2);
+                    local(DSTORE, n.local, -2);
+                }
+            }
+
+            Code op(int opcode) {
+                bytes.write(opcode);
+                return this;
+            }
+
+            private Code op(int opcode, int depth) {
+                stack += depth;
+                maxStack = Math.max(maxStack, stack);
+                return op(opcode);
+            }
+
+            private void local(int opcode, int local, int depth) {
+                if (local > 255) op(WIDE).op(opcode, depth).u2(local);
+                else op(opcode, depth).op(local);
+            }
+
+            Code invoke(int opcode, String owner, String name, String descriptor, int arguments, int result) {
+                return op(opcode, result - arguments).u2(method(owner, name, descriptor));
+            }
+
+            private Code u2(int value) {
+                bytes.write(value >>> 8);
+                bytes.write(value);
+                return this;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.websocket;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Incremental decoder of the frames a client sends, fed whatever bytes have arrived. Headers are parsed in
+ * place once they are whole; payloads are copied straight into a pooled buffer as they come in and unmasked
+ * eight bytes at a time, so a reused input buffer never has to hold a whole frame.
+ */
+final class FrameDecoder {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final int maxFrameSize;
+    private final boolean direct;
+    // The frame being decoded
+    private boolean fin, masked, inPayload;
+    private byte opcode;
+    private int rsv, mask, received;
+    private ByteBuffer payload;
+
+    /**
+     * @param direct whether payloads go to buffers off the heap
+     */
+    FrameDecoder(int maxFrameSize, boolean direct) {
+        this.maxFrameSize = maxFrameSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Decodes from the buffer up to the end of the next frame.
+     *
+     * @return the unmasked payload of the frame from a {@link BufferPool}, to be released by its receiver, or null
+     *         if the buffer ends before it, having consumed everything but an incomplete header
+     * @throws IOException if the frame is malformed or longer than the maximum frame size
+     */
+    ByteBuffer decode(ByteBuffer in) throws IOException {
+        if (!inPayload && !decodeHeader(in)) return null;
+        int n = Math.min(in.remaining(), payload.limit() - received);
+        payload.put(received, in, in.position(), n);
+        in.position(in.position() + n);
+        if (masked) unmask(payload, received, received + n, mask, received);
+        received += n;
+        if (received < payload.limit()) return null;
+        inPayload = false;
+        ByteBuffer p = payload;
+        payload = null;
+        return p;
+    }
+
+    /**
+     * Header of the last frame returned by decode.
+     */
+    boolean fin() {
+        return fin;
+    }
+
+    byte opcode() {
+        return opcode;
+    }
+
+    boolean masked() {
+        return masked;
+    }
+
+    /**
+     * The RSV1 to RSV3 bits, in place.
+     */
+    int rsv() {
+        return rsv;
+    }
+
+    private boolean decodeHeader(ByteBuffer in) throws IOException {
+        int p = in.position();
+        if (in.remaining() < 2) return false;
+        int b0 = in.get(p), b1 = in.get(p + 1);
+        int code = b1 & 127;
+        int extended = code == 126 ? 2 : code == 127 ? 8 : 0;
+        boolean m = (b1 & 0x80) != 0;
+        int size = 2 + extended + (m ? 4 : 0);
+        if (in.remaining() < size) return false;
+        long length = code == 126 ? in.getShort(p + 2) & 0xffff : code == 127 ? in.getLong(p + 2) : code;
+        if (length < 0 || length > maxFrameSize) throw new IOException("Frame too large: " + Long.toUnsignedString(length));
+        fin = (b0 & 0x80) != 0;
+        rsv = b0 & 0x70;
+        opcode = (byte) (b0 & 0xf);
+        if (opcode >= 0x8 && (length > 125 || !fin)) throw new IOException("Invalid control frame");
+        masked = m;
+        if (m) mask = in.getInt(p + 2 + extended);
+        in.position(p + size);
+        payload = BufferPool.acquire((int) length, direct);
+        received = 0;
+        inPayload = true;
+        return true;
+    }
+
+    /**
+     * Unmasks bytes [from, to) of data, which start at the given offset of the payload.
+     */
+    static void unmask(ByteBuffer data, int from, int to, int mask, int offset) {
+        int m = Integer.rotateLeft(mask, 8 * (offset & 3));
+        long m8 = (long) m << 32 | m & 0xffffffffL;
+        int i = from;
+        for (; i + 8 <= to; i += 8) LONGS.set(data, i, (long) LONGS.get(data, i) ^ m8);
+        for (; i < to; i ++) data.put(i, (byte) (data.get(i) ^ m >>> 24 - 8 * ((i - from) & 3)));
+    }
+}
@@ -0,0 +1,155 @@
+package Playground;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/*
+ * Annealing output: the points of a run as frames appended to a file, the last one being its latest state. A run
+ * interrupted resumes from its last complete frame, and viewers may follow the file as it grows.
+ *
+ * Little endian throughout: a 24 byte header of "ANNL", version 1, the number of points n as an int, 4 bytes
+ * reserved and the seed as a long, then frames of 16 + 16n bytes each: the step and temperature after which they
+ * were taken, as a long and a double, n x and n y doubles. In MATLAB:
+ *
+ *   f = fopen('out.bin'); fread(f, 2, 'int32', 'l'); n = fread(f, 1, 'int32', 'l'); fread(f, 12, 'uint8');
+ *   fread(f, 2, 'double', 'l'); x = fread(f, n, 'double', 'l'); y = fread(f, n, 'double', 'l');
+ */
+final class FrameFile implements Closeable {
+    private static final byte[] MAGIC = "ANNL".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1, HEADER = 24;
+    // The most points of a frame fitting in a buffer
+    private static final int MAX_COUNT = (Integer.MAX_VALUE - 16) / 16;
+
+    private final FileChannel channel;
+    private final int count;
+    private final long seed;
+    private final ByteBuffer frame;
+    private long step;
+    private double temperature;
+
+    private FrameFile(FileChannel channel, int count, long seed) {
+        this.channel = channel;
+        this.count = count;
+        this.seed = seed;
+        frame = ByteBuffer.allocateDirect(16 + 16 * count).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * A new file, replacing any at the path, for frames of count points.
+     */
+    static FrameFile create(Path path, int count, long seed) throws IOException {
+        if (count <= 0 || count > MAX_COUNT) throw new IllegalArgumentException("Frames of " + count + " points");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION).putInt(count).putInt(0).putLong(seed).flip();
+        while (header.hasRemaining()) channel.write(header);
+        return new FrameFile(channel, count, seed);
+    }
+
+    /**
+     * Opens the file to append to it, reading its last complete frame into xs and ys and dropping what follows.
+     *
+     * @throws IOException if the file is no frame file of xs.length points or has no complete frame
+     */
+    static FrameFile resume(Path path, double[] xs, double[] ys) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FrameFile f = open(channel, path);
+            if (f.count != xs.length) throw new IOException(path + " has frames of " + f.count + " points, not " + xs.length);
+            long frames = (channel.size() - HEADER) / f.frame.capacity();
+            if (frames == 0) throw new IOException(path + " has no complete frame");
+            f.read(HEADER + (frames - 1) * f.frame.capacity(), xs, ys);
+            channel.truncate(HEADER + frames * f.frame.capacity());
+            channel.position(channel.size());
+            return f;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the last frame of the file as CSV lines of x and y, for readmatrix in MATLAB.
+     */
+    static void exportCsv(Path path, Path csv) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            FrameFile f = open(channel, path);
+            long frames = (channel.size() - HEADER) / f.frame.capacity();
+            if (frames == 0) throw new IOException(path + " has no complete frame");
+            double[] xs = new double[f.count], ys = new double[f.count];
+            f.read(HEADER + (frames - 1) * f.frame.capacity(), xs, ys);
+            try (BufferedWriter out = Files.newBufferedWriter(csv)) {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < xs.length; i ++) {
+                    line.setLength(0);
+                    out.append(line.append(xs[i]).append(',').append(ys[i]).append('\n'));
+                }
+            }
+        }
+    }
+
+    long seed() {
+        return seed;
+    }
+
+    /**
+     * Of the last frame read or appended.
+     */
+    long step() {
+        return step;
+    }
+
+    double temperature() {
+        return temperature;
+    }
+
+    void append(long step, double temperature, double[] xs, double[] ys) throws IOException {
+        this.step = step;
+        this.temperature = temperature;
+        frame.clear();
+        frame.putLong(step).putDouble(temperature);
+        // Bulk copies, in the buffer's byte order
+        frame.asDoubleBuffer().put(xs).put(ys);
+        frame.position(frame.capacity()).flip();
+        while (frame.hasRemaining()) channel.write(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void read(long position, double[] xs, double[] ys) throws IOException {
+        frame.clear();
+        while (frame.hasRemaining()) {
+            if (channel.read(frame, position + frame.position()) < 0) throw new EOFException();
+        }
+        frame.flip();
+        step = frame.getLong();
+        temperature = frame.getDouble();
+        frame.asDoubleBuffer().get(xs).get(ys);
+    }
+
+    /**
+     * The file, from its header.
+     */
+    private static FrameFile open(FileChannel channel, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new IOException(path + " is no frame file");
+        }
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) throw new IOException(path + " is no frame file");
+        int count = header.getInt();
+        if (count <= 0 || count > MAX_COUNT) throw new IOException(path + " is no frame file");
+        header.getInt();
+        return new FrameFile(channel, count, header.getLong());
+    }
+}
@@ -0,0 +1,131 @@
+package net.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/*
+ * Incremental parser of the HTTP request upgrading a connection to WebSocket, fed whatever bytes have arrived.
+ * Every byte is looked at once, however the request is split, and only the headers the handshake needs become
+ * strings. Requests longer than MAX_BYTES or with more than MAX_HEADERS headers are refused.
+ */
+final class HandshakeParser {
+    static final int MAX_BYTES = 8192, MAX_HEADERS = 64;
+    private static final byte[] GET = bytes("GET ");
+    private static final byte[] KEY = bytes("sec-websocket-key"), EXTENSIONS = bytes("sec-websocket-extensions");
+    private static final byte[] GUID = bytes("258EAFA5-E914-47DA-95CA-C5AB0DC85B11");
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required of every Java platform", e);
+        }
+    });
+
+    private byte[] line = new byte[128];
+    private int length, total, headers, status;
+    private boolean requestLine = true;
+    private String key, extensions = "";
+
+    /**
+     * Consumes the request from the buffer, up to the end of its headers at most.
+     *
+     * @return whether the request is complete or refused, with the status to answer it with
+     */
+    boolean parse(ByteBuffer in) {
+        while (status == 0 && in.hasRemaining()) {
+            byte b = in.get();
+            if (++ total > MAX_BYTES) {
+                status = 431;
+                break;
+            }
+            if (b != '\n') {
+                if (length == line.length) line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_BYTES));
+                line[length ++] = b;
+                continue;
+            }
+            // Lines end with CRLF, a bare LF is tolerated
+            int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            length = 0;
+            if (requestLine) {
+                requestLine = false;
+                if (!startsWith(GET, end)) status = 400;
+            } else if (end == 0) {
+                status = key != null ? 101 : 400;
+            } else if (++ headers > MAX_HEADERS) {
+                status = 431;
+            } else {
+                header(end);
+            }
+        }
+        return status != 0;
+    }
+
+    /**
+     * 101 for a request to accept, else the error status.
+     */
+    int status() {
+        return status;
+    }
+
+    /**
+     * The permessage extensions offered, the values of every Sec-WebSocket-Extensions header joined by commas.
+     */
+    String extensions() {
+        return extensions;
+    }
+
+    /**
+     * The Sec-WebSocket-Accept value answering the Sec-WebSocket-Key of the request.
+     */
+    String accept() {
+        MessageDigest sha1 = SHA1.get();
+        sha1.update(key.getBytes(StandardCharsets.ISO_8859_1));
+        return Base64.getEncoder().encodeToString(sha1.digest(GUID));
+    }
+
+    private void header(int end) {
+        int colon = 0;
+        while (colon < end && line[colon] != ':') colon ++;
+        // Folded lines are obsolete and the name must not be empty
+        if (colon == 0 || colon == end || line[0] == ' ' || line[0] == '\t') {
+            status = 400;
+            return;
+        }
+        boolean isKey = named(KEY, colon), isExtensions = !isKey && named(EXTENSIONS, colon);
+        if (!isKey && !isExtensions) return;
+        int from = colon + 1, to = end;
+        while (from < to && (line[from] == ' ' || line[from] == '\t')) from ++;
+        while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) to --;
+        String value = new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+        if (isKey) {
+            if (key != null || value.isEmpty()) status = 400;
+            key = value;
+        } else {
+            extensions = extensions.isEmpty() ? value : extensions + "," + value;
+        }
+    }
+
+    private boolean startsWith(byte[] prefix, int end) {
+        return end >= prefix.length && Arrays.equals(line, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Whether the header name, line[0, length), is the lower case name in any case.
+     */
+    private boolean named(byte[] name, int length) {
+        if (length != name.length) return false;
+        for (int i = 0; i < length; i ++) {
+            byte b = line[i];
+            if ((b >= 'A' && b <= 'Z' ? b + 32 : b) != name[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,99 @@
+package parallel.actor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Concurrent log-linear histogram of non-negative longs in the style of HdrHistogram: each power of two is split
+ * into 64 linear sub-buckets, so recorded values keep a relative precision under 1.6% over the whole long range
+ * in a fixed array, and recording is one atomic increment.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB = 1 << SUB_BITS, HALF = SUB >> 1;
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.getAndIncrement(index(value));
+        total.getAndIncrement();
+        sum.getAndAdd(value);
+        for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get());
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * The highest value equivalent to the one below which the given percentage of recorded values fall.
+     */
+    public long percentile(double percentile) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i ++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestEquivalent(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i ++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.getAndAdd(i, c);
+        }
+        total.getAndAdd(other.total.get());
+        sum.getAndAdd(other.sum.get());
+        for (long m = max.get(), o = other.max.get(); o > m && !max.compareAndSet(m, o); m = max.get());
+    }
+
+    /**
+     * Not atomic with respect to concurrent recording.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i ++) counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "[count: " + count() + ", mean: " + Math.round(mean()) + ", p50: " + percentile(50)
+                + ", p99: " + percentile(99) + ", p99.9: " + percentile(99.9) + ", max: " + max() + "]";
+    }
+
+    private static int index(long value) {
+        if (value < SUB) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB) return index;
+        int k = index - SUB;
+        int shift = k / HALF + 1;
+        long top = k % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,253 @@
+package parallel.actor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Multi-producer single-consumer queue of an actor's messages, linked through the messages themselves
+ * (Vyukov's intrusive MPSC queue). Producers swap the head, only the actor's own activation polls the tail.
+ * The depth is tracked in a counter so it is O(1) to read.
+ *
+ * A bounded mailbox applies its overflow policy when a post finds it full. Each actor needs its own mailbox.
+ */
+public final class Mailbox {
+    public enum Overflow {
+        /** Discards the message being posted. */
+        DROP_NEWEST,
+        /** Accepts the message being posted and discards the oldest queued one, handing it to onUndelivered. */
+        DROP_OLDEST,
+        /** Throws IllegalStateException from the post. */
+        FAIL,
+        /**
+         * Parks the posting thread until there is room. Never use it between actors that can post
+         * to each other, nor from a thread the receiving actor needs to run on.
+         */
+        BLOCK
+    }
+
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    private static final long DROP = 1L << 32;
+    private static final VarHandle HEAD;
+
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(Mailbox.class, "head", Message.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static Mailbox unbounded() {
+        return new Mailbox(UNBOUNDED, Overflow.FAIL);
+    }
+
+    public static Mailbox bounded(int capacity, Overflow overflow) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        return new Mailbox(capacity, overflow);
+    }
+
+    private final int capacity;
+    private final Overflow overflow;
+    private final Message stub = new Message(-1, null);
+    // The depth in the low half, and in the high half the messages accepted under DROP_OLDEST that the consumer
+    // still has to make room for, so a drop is only ever reserved while the mailbox is still full
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger highWater = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile Message head = stub;
+    private Message tail = stub;
+    private boolean attached;
+
+    private Mailbox(int capacity, Overflow overflow) {
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public Overflow overflow() {
+        return overflow;
+    }
+
+    /**
+     * The number of queued messages.
+     */
+    public int depth() {
+        return depth(state.get());
+    }
+
+    /**
+     * The number of messages discarded so far by DROP_NEWEST or DROP_OLDEST.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The highest depth reached, only tracked when actor metrics are enabled.
+     */
+    public int highWaterMark() {
+        return highWater.get();
+    }
+
+    synchronized void attach() {
+        if (attached) throw new IllegalStateException("Mailbox already belongs to an actor");
+        attached = true;
+    }
+
+    boolean isEmpty() {
+        return depth() == 0;
+    }
+
+    /**
+     * Rejects further messages and releases producers blocked on a full mailbox, once its actor has exited.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * @return false if the message was discarded, the mailbox closed, or the producer was interrupted while blocked
+     */
+    boolean offer(Message m) {
+        return offer(m, false);
+    }
+
+    /**
+     * @param unbounded whether to queue the message even if the mailbox is full, overflow policy aside. It still
+     *                  counts towards the depth.
+     */
+    boolean offer(Message m, boolean unbounded) {
+        if (closed) return false;
+        if (unbounded || capacity == UNBOUNDED) {
+            long s = state.getAndIncrement();
+            if (ActorMetrics.ENABLED) raiseHighWater(depth(s) + 1);
+            enqueue(m);
+            return true;
+        }
+        for (;;) {
+            long s = state.get();
+            int c = depth(s);
+            if (c < capacity) {
+                if (state.compareAndSet(s, s + 1)) {
+                    if (ActorMetrics.ENABLED) raiseHighWater(c + 1);
+                    enqueue(m);
+                    return true;
+                }
+                continue;
+            }
+            switch (overflow) {
+                case DROP_NEWEST:
+                    dropped.getAndIncrement();
+                    return false;
+                case DROP_OLDEST:
+                    // Fails if the consumer made room meanwhile, and the post is then retried
+                    if (!state.compareAndSet(s, s + DROP)) continue;
+                    enqueue(m);
+                    return true;
+                case FAIL:
+                    throw new IllegalStateException("Mailbox full: " + capacity);
+                case BLOCK:
+                    if (!awaitSpace() || closed) return false;
+            }
+        }
+    }
+
+    /**
+     * Called by the single consumer only. Messages discarded under DROP_OLDEST go to the undelivered messages of
+     * the owner.
+     *
+     * @return null if empty, or if a producer has claimed a slot but not linked its message yet
+     */
+    Message poll(Actor owner) {
+        for (Message m; (m = dequeue()) != null; ) {
+            if (take()) return m;
+            dropped.getAndIncrement();
+            owner.undelivered(m, "Dropped by a full mailbox");
+        }
+        return null;
+    }
+
+    /**
+     * Accounts for the message at the head, which is kept unless a drop is pending.
+     */
+    private boolean take() {
+        for (;;) {
+            long s = state.get();
+            if (s >= DROP) {
+                if (state.compareAndSet(s, s - DROP)) return false;
+            } else if (state.compareAndSet(s, s - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static int depth(long state) {
+        return (int) state;
+    }
+
+    private void raiseHighWater(int depth) {
+        for (int h = highWater.get(); depth > h && !highWater.compareAndSet(h, depth); h = highWater.get());
+    }
+
+    private void enqueue(Message m) {
+        m.next = null;
+        Message prev = (Message) HEAD.getAndSet(this, m);
+        prev.next = m;
+    }
+
+    private Message dequeue() {
+        Message t = tail, next = t.next;
+        if (t == stub) {
+            if (next == null) return null;
+            tail = t = next;
+            next = next.next;
+        }
+        if (next != null) {
+            tail = next;
+            return t;
+        }
+        if (t != head) return null;
+        // t is the last message: put the stub behind it so t can be unlinked
+        enqueue(stub);
+        next = t.next;
+        if (next != null) {
+            tail = next;
+            return t;
+        }
+        return null;
+    }
+
+    private boolean awaitSpace() {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                long parkNanos = 1_000;
+
+                @Override
+                public boolean block() {
+                    if (isReleasable()) return true;
+                    LockSupport.parkNanos(Mailbox.this, parkNanos);
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                    return isReleasable() || Thread.currentThread().isInterrupted();
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return depth() < capacity || closed;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+}
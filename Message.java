@@ -0,0 +1,28 @@
+package parallel.actor;
+
+/*
+ * A queued call of a handler. Posts by name carry their arguments in an array, while proxy calls
+ * of up to three parameters store them inline: references in o0-o2, primitives widened to long
+ * (floating point as raw bits) in p0-p2, so that calling through a proxy neither allocates an array nor boxes.
+ */
+class Message {
+    static final int INLINE_ARGUMENTS = 3;
+
+    final int handler;
+    final Object[] arguments;
+    Object o0, o1, o2;
+    long p0, p1, p2;
+    // Set when the message is an ask
+    Reply reply;
+    // Set when metrics are enabled
+    long enqueuedAt;
+    volatile Message next;
+    Message(int handler, Object[] arguments) {
+        this.handler = handler;
+        this.arguments = arguments;
+    }
+
+    Message(int handler) {
+        this(handler, null);
+    }
+}
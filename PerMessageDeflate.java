@@ -0,0 +1,213 @@
+package net.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * The permessage-deflate extension (RFC 7692) as negotiated with one connection.
+ *
+ * Without context takeover every message is compressed on its own, so instances come from a pool shared by
+ * all connections for the length of one message, and a broadcast can be compressed once for every connection
+ * that negotiated the same. With context takeover the connection keeps its instance until it closes.
+ * Deflater always uses a 32K window, so offers limiting the server window below 15 bits are declined.
+ */
+final class PerMessageDeflate {
+    static final String NAME = "permessage-deflate";
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int POOLED = 64;
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOLED);
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOLED);
+
+    final boolean serverNoContextTakeover, clientNoContextTakeover;
+    private final boolean serverMaxWindowBits;
+    private Deflater deflater;
+    private Inflater inflater;
+    // The message being decompressed, fragment by fragment
+    private Inflater messageInflater;
+    private long inflated;
+
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, boolean serverMaxWindowBits) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.serverMaxWindowBits = serverMaxWindowBits;
+        if (!serverNoContextTakeover) deflater = deflater();
+        if (!clientNoContextTakeover) inflater = inflater();
+    }
+
+    /**
+     * Accepts the first acceptable permessage-deflate offer of a Sec-WebSocket-Extensions header.
+     *
+     * @param contextTakeover whether to let both sides keep their context between messages when the offer
+     *                        does not forbid it; without it the response asks the client not to either
+     * @return null if there is no acceptable offer
+     */
+    static PerMessageDeflate negotiate(String offers, boolean contextTakeover) {
+        for (String offer : offers.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equals(NAME)) continue;
+            boolean serverNoContextTakeover = !contextTakeover, clientNoContextTakeover = !contextTakeover;
+            boolean serverMaxWindowBits = false, acceptable = true;
+            Set<String> seen = new HashSet<>();
+            for (int i = 1; i < params.length && acceptable; i ++) {
+                String[] param = params[i].split("=", 2);
+                String name = param[0].trim();
+                String value = param.length > 1 ? param[1].trim().replace("\"", "") : null;
+                if (!seen.add(name)) acceptable = false;
+                else switch (name) {
+                    case "server_no_context_takeover":
+                        serverNoContextTakeover = true;
+                        acceptable = value == null;
+                        break;
+                    case "client_no_context_takeover":
+                        clientNoContextTakeover = true;
+                        acceptable = value == null;
+                        break;
+                    case "server_max_window_bits":
+                        serverMaxWindowBits = true;
+                        acceptable = "15".equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        // Inflater reads any window size
+                        acceptable = value == null || value.matches("8|9|1[0-5]");
+                        break;
+                    default:
+                        acceptable = false;
+                }
+            }
+            if (acceptable) return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover, serverMaxWindowBits);
+        }
+        return null;
+    }
+
+    /**
+     * The value of the Sec-WebSocket-Extensions response header.
+     */
+    String response() {
+        return NAME + (serverNoContextTakeover ? "; server_no_context_takeover" : "")
+                + (clientNoContextTakeover ? "; client_no_context_takeover" : "")
+                + (serverMaxWindowBits ? "; server_max_window_bits=15" : "");
+    }
+
+    /**
+     * @return the compressed payload, or without context takeover null if it is no smaller than the message:
+     *         with it, the client's context must see every message compressed
+     */
+    byte[] compress(byte[] message) {
+        if (!serverNoContextTakeover) return deflate(deflater, message);
+        return compressShared(message);
+    }
+
+    /**
+     * Compresses without context, the same for every connection with server_no_context_takeover.
+     *
+     * @return the compressed payload, or null if it is no smaller than the message
+     */
+    static byte[] compressShared(byte[] message) {
+        Deflater d = deflater();
+        try {
+            return smaller(deflate(d, message), message);
+        } finally {
+            d.reset();
+            if (!deflaters.offer(d)) d.end();
+        }
+    }
+
+    /**
+     * Decompresses the next fragment of a message, as far as it goes.
+     *
+     * @param last whether the fragment ends the message
+     * @throws IOException if the payload is corrupt or the message inflates to more than max bytes
+     */
+    byte[] decompress(ByteBuffer fragment, boolean last, int max) throws IOException {
+        if (messageInflater == null) {
+            messageInflater = clientNoContextTakeover ? inflater() : inflater;
+            inflated = 0;
+        }
+        byte[] out = inflate(messageInflater, fragment, last, max - inflated);
+        inflated += out.length;
+        if (last) endMessage();
+        return out;
+    }
+
+    private void endMessage() {
+        if (messageInflater != inflater) {
+            messageInflater.reset();
+            if (!inflaters.offer(messageInflater)) messageInflater.end();
+        }
+        messageInflater = null;
+    }
+
+    /**
+     * Returns what the connection kept to the pools, once it is closed.
+     */
+    void release() {
+        if (messageInflater != null) endMessage();
+        if (deflater != null) {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) inflater.end();
+            inflater = null;
+        }
+    }
+
+    private static Deflater deflater() {
+        Deflater d = deflaters.poll();
+        return d != null ? d : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    private static Inflater inflater() {
+        Inflater i = inflaters.poll();
+        return i != null ? i : new Inflater(true);
+    }
+
+    private static byte[] smaller(byte[] compressed, byte[] message) {
+        return compressed.length < message.length ? compressed : null;
+    }
+
+    private static byte[] deflate(Deflater d, byte[] message) {
+        d.setInput(message);
+        byte[] out = new byte[Math.max(64, message.length / 2 + 16)];
+        int n = 0;
+        // A sync flush that fills the buffer may have more to write
+        while ((n += d.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH)) == out.length)
+            out = Arrays.copyOf(out, out.length * 2);
+        // The flush ends with an empty stored block, 00 00 ff ff, which the extension leaves out. With nothing to
+        // flush, as for an empty message after another, there is none: the single 00 of RFC 7692 7.2.3.6 begins one
+        if (n == 0) return new byte[1];
+        return Arrays.copyOf(out, n - TAIL.length);
+    }
+
+    private static byte[] inflate(Inflater inflater, ByteBuffer payload, boolean last, long max) throws IOException {
+        byte[] out = new byte[(int) Math.min(max, Math.max(64L, payload.remaining() * 4L))];
+        int n = 0;
+        try {
+            for (ByteBuffer input : last ? new ByteBuffer[] {payload, ByteBuffer.wrap(TAIL)} : new ByteBuffer[] {payload}) {
+                inflater.setInput(input);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    if (n == out.length && out.length >= max) {
+                        // Exactly max bytes is allowed, as long as nothing follows
+                        if (inflater.inflate(new byte[1]) > 0) throw new IOException("Message inflates to more than allowed");
+                        if (inflater.needsDictionary()) throw new IOException("Compressed message needs a dictionary");
+                        continue;
+                    }
+                    if (n == out.length) out = Arrays.copyOf(out, (int) Math.min(max, out.length * 2L));
+                    int inflated = inflater.inflate(out, n, out.length - n);
+                    if (inflated == 0 && inflater.needsDictionary()) throw new IOException("Compressed message needs a dictionary");
+                    n += inflated;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message", e);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+}
@@ -0,0 +1,174 @@
+package parallel.actor;
+
+import static parallel.actor.ClassWriter.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import parallel.actor.ClassWriter.Code;
+
+/*
+ * Generates, once per actor class and protocol interface, a hidden class implementing the interface
+ * whose methods fill a Message with the resolved handler and their arguments and enqueue it, bounded
+ * or not as the instance says, or ask with it for methods returning a future.
+ * The generated methods are straight-line code, written with ClassWriter.
+ */
+final class ProxyGenerator {
+    private static final ClassValue<Map<Class<?>, MethodHandle>> constructors = new ClassValue<>() {
+        @Override
+        protected Map<Class<?>, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final String ACTOR = "parallel/actor/Actor";
+    private static final String MESSAGE = "parallel/actor/Message";
+    private static final String PROXY = "parallel/actor/ActorProxy";
+
+    private ProxyGenerator() {}
+
+    static <T> T proxy(Actor actor, DispatchTable table, Class<T> protocol, long askTimeoutNanos, boolean unbounded) {
+        MethodHandle constructor = constructors.get(actor.getClass())
+                .computeIfAbsent(protocol, p -> generate(actor.getClass(), table, p));
+        try {
+            return protocol.cast(constructor.invoke(actor, askTimeoutNanos, unbounded));
+        } catch (Throwable e) {
+            throw new IllegalStateException("Proxy instantiation failed for " + protocol.getName(), e);
+        }
+    }
+
+    private static MethodHandle generate(Class<?> type, DispatchTable table, Class<?> protocol) {
+        if (!protocol.isInterface() || !Modifier.isPublic(protocol.getModifiers()))
+            throw new IllegalArgumentException("Protocol must be a public interface: " + protocol.getName());
+        ClassWriter cw = new ClassWriter(PROXY, OBJECT, internalName(protocol));
+        cw.field("target", "L" + ACTOR + ";");
+        cw.field("timeout", "J");
+        cw.field("unbounded", "Z");
+        constructor(cw);
+        for (Method m : protocol.getMethods()) {
+            if (Modifier.isStatic(m.getModifiers()) || m.isDefault()) continue;
+            int handler = table.find(m.getName(), m.getParameterTypes());
+            if (handler < 0)
+                throw new IllegalArgumentException("No handler " + m.getName() + Arrays.toString(m.getParameterTypes())
+                        + " in " + type.getName() + " for " + protocol.getName());
+            Class<?> r = m.getReturnType();
+            if (r != void.class && r != boolean.class && r != CompletableFuture.class && r != CompletionStage.class)
+                throw new IllegalArgumentException("Protocol method must return void, boolean or a future: " + m);
+            method(cw, m, handler);
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toBytes(), true);
+            return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Actor.class, long.class, boolean.class))
+                    .asType(MethodType.methodType(Object.class, Actor.class, long.class, boolean.class));
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new IllegalStateException("Proxy generation failed for " + protocol.getName(), e);
+        }
+    }
+
+    private static String internalName(Class<?> c) {
+        return c.getName().replace('.', '/');
+    }
+
+    private static String descriptor(Class<?> c) {
+        if (c == void.class) return "V";
+        if (c == boolean.class) return "Z";
+        if (c == byte.class) return "B";
+        if (c == char.class) return "C";
+        if (c == short.class) return "S";
+        if (c == int.class) return "I";
+        if (c == long.class) return "J";
+        if (c == float.class) return "F";
+        if (c == double.class) return "D";
+        if (c.isArray()) return c.getName().replace('.', '/');
+        return "L" + internalName(c) + ";";
+    }
+
+    private static String descriptor(Method m) {
+        StringBuilder d = new StringBuilder("(");
+        for (Class<?> p : m.getParameterTypes()) d.append(descriptor(p));
+        return d.append(')').append(descriptor(m.getReturnType())).toString();
+    }
+
+    private static void constructor(ClassWriter cw) {
+        Code c = cw.new Code(5);
+        c.op(ALOAD, 0).invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        c.op(ALOAD, 0).op(ALOAD, 1).field(PUTFIELD, PROXY, "target", "L" + ACTOR + ";");
+        c.op(ALOAD, 0).op(LLOAD, 2).field(PUTFIELD, PROXY, "timeout", "J");
+        c.op(ALOAD, 0).op(ILOAD, 4).field(PUTFIELD, PROXY, "unbounded", "Z");
+        c.op(RETURN);
+        cw.method("<init>", "(L" + ACTOR + ";JZ)V", c.stack(3));
+    }
+
+    private static void method(ClassWriter cw, Method m, int handler) {
+        Class<?>[] params = m.getParameterTypes();
+        int[] slots = new int[params.length];
+        int next = 1;
+        for (int i = 0; i < params.length; i ++) {
+            slots[i] = next;
+            next += params[i] == long.class || params[i] == double.class ? 2 : 1;
+        }
+        Code c = cw.new Code(next);
+        int message = c.local(1);
+        c.op(NEW).u2(cw.cls(MESSAGE)).op(DUP).push(handler);
+        if (params.length <= Message.INLINE_ARGUMENTS) {
+            c.invoke(INVOKESPECIAL, MESSAGE, "<init>", "(I)V").op(ASTORE, message);
+            for (int i = 0; i < params.length; i ++) {
+                c.op(ALOAD, message);
+                load(c, params[i], slots[i]);
+                if (params[i].isPrimitive()) {
+                    widen(c, params[i]).field(PUTFIELD, MESSAGE, "p" + i, "J");
+                } else {
+                    c.field(PUTFIELD, MESSAGE, "o" + i, "L" + OBJECT + ";");
+                }
+            }
+        } else {
+            c.push(params.length).op(ANEWARRAY).u2(cw.cls(OBJECT));
+            for (int i = 0; i < params.length; i ++) {
+                load(c.op(DUP).push(i), params[i], slots[i]);
+                box(c, params[i]).op(AASTORE);
+            }
+            c.invoke(INVOKESPECIAL, MESSAGE, "<init>", "(I[L" + OBJECT + ";)V").op(ASTORE, message);
+        }
+        c.op(ALOAD, 0).field(GETFIELD, PROXY, "target", "L" + ACTOR + ";").op(ALOAD, message);
+        Class<?> r = m.getReturnType();
+        if (r == CompletableFuture.class || r == CompletionStage.class) {
+            c.op(ALOAD, 0).field(GETFIELD, PROXY, "timeout", "J");
+            c.invoke(INVOKEVIRTUAL, ACTOR, "request", "(L" + MESSAGE + ";J)Ljava/util/concurrent/CompletableFuture;");
+            c.op(ARETURN);
+        } else {
+            c.op(ALOAD, 0).field(GETFIELD, PROXY, "unbounded", "Z");
+            c.invoke(INVOKEVIRTUAL, ACTOR, "enqueue", "(L" + MESSAGE + ";Z)Z");
+            if (r == boolean.class) c.op(IRETURN);
+            else c.op(POP).op(RETURN);
+        }
+        // new, dup, handler and a widened argument at most
+        cw.method(m.getName(), descriptor(m), c.stack(8));
+    }
+
+    private static void load(Code c, Class<?> type, int local) {
+        if (!type.isPrimitive()) c.op(ALOAD, local);
+        else if (type == long.class) c.op(LLOAD, local);
+        else if (type == float.class) c.op(FLOAD, local);
+        else if (type == double.class) c.op(DLOAD, local);
+        else c.op(ILOAD, local);
+    }
+
+    private static Code widen(Code c, Class<?> type) {
+        if (type == long.class) return c;
+        if (type == double.class) return c.invoke(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J");
+        if (type == float.class) c.invoke(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I");
+        return c.op(I2L);
+    }
+
+    private static Code box(Code c, Class<?> type) {
+        if (!type.isPrimitive()) return c;
+        String wrapper = internalName(DispatchTable.box(type));
+        return c.invoke(INVOKESTATIC, wrapper, "valueOf", "(" + descriptor(type) + ")L" + wrapper + ";");
+    }
+}
@@ -0,0 +1,42 @@
+package parallel.actor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * The future of an ask, completed on the target actor's thread by the handler's result. A handler returning
+ * a CompletionStage completes the reply when that stage does. The timeout, if any, runs on the shared timing wheel.
+ */
+class Reply extends CompletableFuture<Object> implements Runnable {
+    private final long timeoutNanos;
+    private TimingWheel.Timeout timeout;
+
+    Reply(long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+        if (timeoutNanos > 0) timeout = TimingWheel.shared().schedule(this, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void settle(Object result) {
+        if (result instanceof CompletionStage) {
+            ((CompletionStage<?>) result).whenComplete((r, e) -> {
+                if (e != null) fail(e);
+                else settle(r);
+            });
+            return;
+        }
+        if (timeout != null) timeout.cancel();
+        complete(result);
+    }
+
+    void fail(Throwable e) {
+        if (timeout != null) timeout.cancel();
+        completeExceptionally(e);
+    }
+
+    @Override
+    public void run() {
+        completeExceptionally(new TimeoutException("No reply within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+    }
+}
@@ -0,0 +1,152 @@
+package parallel.actor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+ * Fronts a fixed pool of routee actors. The router is not an actor itself: routing happens on the posting
+ * thread without locks, so it never becomes the serial bottleneck it is meant to remove.
+ *
+ * CONSISTENT_HASHING sends every message with the same key to the same routee, which keeps the order of
+ * messages per key. The ring has virtual nodes so keys spread evenly.
+ */
+public final class Router<A extends Actor> {
+    public enum Strategy {
+        ROUND_ROBIN,
+        SMALLEST_MAILBOX,
+        CONSISTENT_HASHING,
+        BROADCAST
+    }
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final Strategy strategy;
+    private final List<A> routees;
+    private final Actor[] actors;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long[] ring;
+    private final int[] ringRoutees;
+    private final Map<Class<?>, Object[]> proxies = new ConcurrentHashMap<>();
+
+    public Router(Strategy strategy, List<A> routees) {
+        if (routees.isEmpty()) throw new IllegalArgumentException("Router without routees");
+        this.strategy = strategy;
+        this.routees = List.copyOf(routees);
+        this.actors = this.routees.toArray(new Actor[0]);
+        if (strategy == Strategy.CONSISTENT_HASHING) {
+            int n = actors.length * VIRTUAL_NODES;
+            long[] points = new long[n];
+            for (int r = 0, i = 0; r < actors.length; r ++)
+                for (int v = 0; v < VIRTUAL_NODES; v ++, i ++)
+                    points[i] = (mix(r * 0x9E3779B97F4A7C15L + v) & ~0xffffL) | r;
+            Arrays.sort(points);
+            ring = new long[n];
+            ringRoutees = new int[n];
+            for (int i = 0; i < n; i ++) {
+                ring[i] = points[i] & ~0xffffL;
+                ringRoutees[i] = (int) (points[i] & 0xffff);
+            }
+        } else {
+            ring = null;
+            ringRoutees = null;
+        }
+    }
+
+    public static <A extends Actor> Router<A> of(Strategy strategy, int routees, Supplier<A> factory) {
+        List<A> list = new ArrayList<>(routees);
+        for (int i = 0; i < routees; i ++) list.add(factory.get());
+        return new Router<>(strategy, list);
+    }
+
+    public Strategy strategy() {
+        return strategy;
+    }
+
+    public List<A> routees() {
+        return routees;
+    }
+
+    /**
+     * The routee the strategy picks for a message with the given key. The key is only used by
+     * CONSISTENT_HASHING, where it must not be null.
+     *
+     * @throws IllegalStateException for BROADCAST, which picks every routee
+     */
+    @SuppressWarnings("unchecked")
+    public A route(Object key) {
+        return (A) actors[select(key)];
+    }
+
+    /**
+     * Like {@link #route(Object)}, returning a proxy of the routee. Proxies are created once per routee and protocol.
+     */
+    public <T> T route(Object key, Class<T> protocol) {
+        return protocol.cast(proxies(protocol)[select(key)]);
+    }
+
+    /**
+     * Proxies of every routee, in order.
+     */
+    public <T> List<T> all(Class<T> protocol) {
+        List<T> list = new ArrayList<>(actors.length);
+        for (Object p : proxies(protocol)) list.add(protocol.cast(p));
+        return list;
+    }
+
+    /**
+     * Posts to the routee the strategy picks, or to every routee for BROADCAST.
+     *
+     * @return false if a routee did not accept the message
+     */
+    public boolean post(Object key, String method, Object... arguments) {
+        if (strategy != Strategy.BROADCAST) return actors[select(key)].post(method, arguments);
+        boolean all = true;
+        for (Actor a : actors) all &= a.post(method, arguments);
+        return all;
+    }
+
+    private int select(Object key) {
+        switch (strategy) {
+            case ROUND_ROBIN:
+                return Math.floorMod(next.getAndIncrement(), actors.length);
+            case SMALLEST_MAILBOX: {
+                // Start from a rotating offset so that ties do not all go to the first routee
+                int start = Math.floorMod(next.getAndIncrement(), actors.length), best = start;
+                int smallest = actors[start].getMessageCount();
+                for (int i = 1; i < actors.length && smallest > 0; i ++) {
+                    int r = (start + i) % actors.length, depth = actors[r].getMessageCount();
+                    if (depth < smallest) {
+                        smallest = depth;
+                        best = r;
+                    }
+                }
+                return best;
+            }
+            case CONSISTENT_HASHING: {
+                if (key == null) throw new IllegalArgumentException("Consistent hashing needs a key");
+                long h = mix(key.hashCode()) & ~0xffffL;
+                int i = Arrays.binarySearch(ring, h);
+                if (i < 0) i = -i - 1;
+                return ringRoutees[i == ring.length ? 0 : i];
+            }
+            default:
+                throw new IllegalStateException("Broadcast routers have no single routee");
+        }
+    }
+
+    private Object[] proxies(Class<?> protocol) {
+        return proxies.computeIfAbsent(protocol, p -> {
+            Object[] array = new Object[actors.length];
+            for (int i = 0; i < actors.length; i ++) array[i] = actors[i].proxy(p);
+            return array;
+        });
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
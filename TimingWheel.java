@@ -0,0 +1,193 @@
+package parallel.actor;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Hashed timing wheel: timeouts hash by deadline into a ring of buckets that one thread visits a tick at a time,
+ * so scheduling and cancelling are O(1) however many timeouts are pending. Timeouts fire up to a tick late.
+ *
+ * Scheduling and cancelling only queue the change, the wheel thread applies it at its next tick. Tasks run on
+ * the wheel thread and must be short: complete a future or post to an actor.
+ */
+public final class TimingWheel implements AutoCloseable {
+    private static class Shared {
+        static final TimingWheel instance = new TimingWheel(Duration.ofMillis(10), 512, "timing-wheel");
+    }
+
+    /**
+     * A wheel with a 10ms tick shared by the actor runtime.
+     */
+    public static TimingWheel shared() {
+        return Shared.instance;
+    }
+
+    public static final class Timeout {
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = PENDING;
+        private long rounds;
+        private Timeout next, prev;
+        private Bucket bucket;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the timeout already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+            wheel.pending.decrementAndGet();
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+    }
+
+    private static class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) head = tail = t;
+            else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) t.prev.next = t.next;
+            else head = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            else tail = t.prev;
+            t.next = t.prev = null;
+            t.bucket = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long start = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * @param wheelSize rounded up to a power of two
+     */
+    public TimingWheel(Duration tick, int wheelSize, String name) {
+        if (tick.toNanos() <= 0) throw new IllegalArgumentException("Tick must be positive: " + tick);
+        if (wheelSize < 1 || wheelSize > 1 << 30) throw new IllegalArgumentException("Wheel size out of range: " + wheelSize);
+        this.tickNanos = tick.toNanos();
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < wheel.length; i ++) wheel[i] = new Bucket();
+        this.mask = wheel.length - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, Duration delay) {
+        return schedule(task, delay.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) throw new IllegalStateException("Timing wheel stopped");
+        Timeout t = new Timeout(this, task, System.nanoTime() - start + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        scheduled.add(t);
+        return t;
+    }
+
+    /**
+     * The number of timeouts scheduled that have neither fired nor been cancelled.
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the wheel thread. Pending timeouts never fire.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            for (long now; running && (now = System.nanoTime() - start) < deadline; )
+                LockSupport.parkNanos(this, deadline - now);
+            if (!running) break;
+            removeCancelled();
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick ++;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout t; (t = cancelled.poll()) != null; )
+            if (t.bucket != null) t.bucket.remove(t);
+    }
+
+    private void transferScheduled() {
+        for (Timeout t; (t = scheduled.poll()) != null; ) {
+            if (t.state != Timeout.PENDING) continue;
+            long ticks = t.deadline / tickNanos;
+            t.rounds = (ticks - tick) / wheel.length;
+            // Deadlines already passed go to the current bucket
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+        }
+    }
+
+    private void expire(Bucket bucket, long deadline) {
+        for (Timeout t = bucket.head; t != null; ) {
+            Timeout next = t.next;
+            if (t.rounds <= 0) {
+                bucket.remove(t);
+                if (t.deadline <= deadline && Timeout.STATE.compareAndSet(t, Timeout.PENDING, Timeout.EXPIRED)) {
+                    pending.decrementAndGet();
+                    try {
+                        t.task.run();
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                t.rounds --;
+            }
+            t = next;
+        }
+    }
+}
@@ -1,38 +1,199 @@
 package net.websocket;
 
 import java.io.*;
-import java.lang.reflect.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
-import java.security.*;
+import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.*;
-import java.util.regex.*;
-import javax.xml.bind.DatatypeConverter;
 
 import parallel.actor.*;
 
-public class WebSocketServer extends Actor {
+public final class WebSocketServer extends Actor {
+    private static final int SHARD_THROUGHPUT = 64;
+    private static final int CONNECTION_MAILBOX = 1024;
+    private static final int EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int INBOUND_BUFFER = 8192;
+    private static final int GATHER = 64;
+    // Room for the connections of a reconnect storm while the accepting thread catches up
+    private static final int ACCEPT_BACKLOG = 1024;
     private int port;
-    private PrintStream logger;
-    private boolean running = false;
+    private final AsyncLogger logger;
+    private volatile boolean running = false;
     private ServerSocket socket;
+    private ServerSocketChannel channel;
+    private EventLoop[] loops;
     private ExecutorService pool = Executors.newCachedThreadPool();
-    private Map<String, WebSocketConnection> id2Connection;
+    // The blocking transport's connection actors, whose writes hold a thread until the client reads: not one of
+    // the pool the shards run on
+    private final Dispatcher blocking = Dispatcher.of(pool);
     private Function<String, Integer> onOpen = id -> 0;
     private Function<String, Integer> onClose = id -> 0;
     private BiFunction<String, String, Integer> onText = (id, text) -> 0;
     private BiFunction<String, byte[], Integer> onBinary = (id, bin) -> 0;
+    private BiFunction<String, Boolean, Integer> onWritable = (id, writable) -> 0;
+    private FragmentHandler onFragment;
+    private final Events events;
+    private Duration requestTimeout = Duration.ofSeconds(30);
+    private Duration pingInterval = Duration.ofSeconds(30), pongTimeout = Duration.ofSeconds(10);
+    private Duration idleTimeout = Duration.ZERO, handshakeTimeout = Duration.ofSeconds(10);
+    private final TimingWheel timers;
+    private final Thread shutdownHook = new Thread(this::stop);
+    private int maxFrameSize = 16 << 20, maxMessageSize = 16 << 20;
+    private int lowWaterMark = 256 << 10, highWaterMark = 1 << 20;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.BACKPRESSURE;
+    private boolean compression = true, compressionContextTakeover = false;
+    private int compressionThreshold = 256;
+    private boolean directBuffers = false;
+    private volatile Router<Shard> shards = shards(Runtime.getRuntime().availableProcessors());
+
+    /*
+     * The least severe log lines written, from frames sent and received up to errors only.
+     */
+    public enum LogLevel {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    /*
+     * What happens to a frame sent to a connection with more than the high water mark of bytes waiting to be written.
+     */
+    public enum SlowConsumerPolicy {
+        // Drop the frame
+        DROP,
+        // Close the connection
+        CLOSE,
+        // Queue the frame anyway: onWritable told the sender to hold off when the mark was passed
+        BACKPRESSURE
+    }
+
+    /*
+     * Receives messages fragment by fragment as they arrive rather than whole, so that large messages are never
+     * held in memory at once.
+     */
+    @FunctionalInterface
+    public interface FragmentHandler {
+        /**
+         * @param text whether the message is text, whose characters may be split between fragments
+         * @param data the payload of the fragment, decompressed, only valid until the handler returns
+         * @param last whether the fragment ends the message
+         * @return a status code like the other handlers, 0 for success
+         */
+        int apply(String id, boolean text, ByteBuffer data, boolean last);
+    }
+
+    /*
+     * Messages from the connection actors to the server actor and its shards, sent through actor proxies.
+     * They are public only because the proxies implement them.
+     */
+    public interface Events {
+        void handleOpen(WebSocketConnection c);
+        void handleClose(WebSocketConnection c);
+        void handleText(WebSocketConnection c, String text);
+        void handleBinary(WebSocketConnection c, byte[] bin);
+        void handleFragment(WebSocketConnection c, boolean text, ByteBuffer data, boolean last);
+        void handleWritable(WebSocketConnection c, boolean writable);
+    }
+
+    public interface Connection {
+        void send(String text, boolean FIN);
+        void send(byte[] data, boolean FIN);
+        boolean send(EncodedFrame frame);
+        void sendMessage(byte opcode, byte[] payload);
+        void close();
+        void checkInput();
+        void heartbeat();
+    }
+
+    /*
+     * Messages to the shards about the topics of their connections.
+     */
+    public interface Topics {
+        void subscribe(String id, String topic);
+        void unsubscribe(String id, String topic);
+        void publish(String topic, Publication p);
+    }
+
+    /*
+     * Messages from an event loop to the connection actors it reads for.
+     */
+    public interface Transport {
+        void open(HandshakeParser request);
+        void receive(WebSocketConnection.Frame f);
+        void flush();
+        void resumeReading();
+    }
+
+    /*
+     * Like Connection, with futures of whether the frame was queued or the connection closed by the call.
+     */
+    public interface Requests {
+        CompletableFuture<Boolean> send(String text, boolean FIN);
+        CompletableFuture<Boolean> send(byte[] data, boolean FIN);
+        CompletableFuture<Boolean> close();
+    }
+
+    /**
+     * @param eventLoops the number of selector threads sharing the connections, or 0 to serve every connection
+     *                   with blocking streams polled by a thread pool
+     */
+    public WebSocketServer(int port, PrintStream logger, int eventLoops) throws IOException {
+        if (eventLoops < 0) throw new IllegalArgumentException("Event loops must not be negative: " + eventLoops);
+        // Bound before anything starts a thread, so that a port in use leaves nothing behind
+        try {
+            if (eventLoops == 0) {
+                socket = new ServerSocket(port, ACCEPT_BACKLOG);
+                this.port = socket.getLocalPort();
+            } else {
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+                channel.configureBlocking(false);
+                this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+                loops = new EventLoop[eventLoops];
+                for (int i = 0; i < eventLoops; i ++) loops[i] = new EventLoop(i);
+                channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeTransport(e);
+            throw e;
+        }
+        this.logger = new AsyncLogger(logger, "websocket-log-" + port);
+        // Heartbeats need no finer tick than a tenth of a second
+        this.timers = new TimingWheel(Duration.ofMillis(100), 1024, "websocket-timers-" + port);
+        // The shards take the events of established connections, the server actor hears only of those still in
+        // their handshake, whose response may pass the high water mark
+        events = proxy(Events.class);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Closes what the constructor opened before failing, adding what fails to close to its exception.
+     */
+    private void closeTransport(Exception failure) {
+        List<Closeable> opened = new ArrayList<>();
+        opened.add(socket);
+        opened.add(channel);
+        if (loops != null) for (EventLoop loop : loops) if (loop != null) opened.add(loop.selector);
+        for (Closeable c : opened) {
+            try {
+                if (c != null) c.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
 
     public WebSocketServer(int port, PrintStream logger) throws IOException {
-        this.port = port;
-        this.logger = logger;
-        socket = new ServerSocket(port);
-        id2Connection = new Hashtable<>();
-        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        this(port, logger, EVENT_LOOPS);
     }
 
     public WebSocketServer(int port) throws IOException {
@@ -44,12 +205,8 @@ public class WebSocketServer extends Actor {
     }
 
     @Override
-    protected void executeMethod(Method m, Object[] arguments) {
-        try {
-            m.invoke(this, arguments);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            logError("Message executing error", e);
-        }
+    protected void onMessageError(Throwable e) {
+        logError("Message executing error", e);
     }
 
     public boolean isRunning() {
@@ -60,6 +217,20 @@ public class WebSocketServer extends Actor {
         return port;
     }
 
+    /**
+     * Sets the least severe lines logged, INFO by default. Lines below it are not even built.
+     */
+    public void setLogLevel(LogLevel level) {
+        logger.setLevel(Objects.requireNonNull(level));
+    }
+
+    /**
+     * Logs to the end of the file instead of the stream given to the constructor.
+     */
+    public void setLogFile(Path file) throws IOException {
+        logger.setFile(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
     public void setOnOpen(Function<String, Integer> handler) {
         this.onOpen = handler;
     }
@@ -76,80 +247,375 @@ public class WebSocketServer extends Actor {
         this.onBinary = handler;
     }
 
+    /**
+     * Sets a handler receiving the messages that start from now on fragment by fragment, instead of onText and
+     * onBinary receiving them whole. Null goes back to whole messages.
+     */
+    public void setOnFragment(FragmentHandler handler) {
+        this.onFragment = handler;
+    }
+
+    /**
+     * Sets what is called with false once more than the high water mark of bytes wait to be written to a
+     * connection, and with true once they are down to the low water mark again.
+     */
+    public void setOnWritable(BiFunction<String, Boolean, Integer> handler) {
+        this.onWritable = handler;
+    }
+
+    /**
+     * Sets over how many shard actors connections are partitioned by id before the server starts, one per processor
+     * by default. Events of one connection always go to its shard, in order; with one shard every callback runs serially.
+     */
+    public void setShards(int shards) {
+        if (shards < 1) throw new IllegalArgumentException("Shards must be positive: " + shards);
+        if (running) throw new IllegalStateException("Shards are set before the server starts");
+        this.shards = shards(shards);
+    }
+
+    /**
+     * Sets after how long the futures of sendAsync and closeAsync fail with a TimeoutException,
+     * for connections established from now on.
+     */
+    public void setRequestTimeout(Duration timeout) {
+        this.requestTimeout = timeout;
+    }
+
+    /**
+     * Sets how long connections established from now on may be silent before they are pinged, 30 seconds by default,
+     * and how long they then have to answer with a pong, 10 seconds by default, before they are closed.
+     * A zero interval sends no pings.
+     */
+    public void setHeartbeat(Duration pingInterval, Duration pongTimeout) {
+        if (pingInterval.isNegative() || pongTimeout.isNegative() || pongTimeout.isZero() && !pingInterval.isZero())
+            throw new IllegalArgumentException("Invalid heartbeat: " + pingInterval + ", " + pongTimeout);
+        this.pingInterval = pingInterval;
+        this.pongTimeout = pongTimeout;
+    }
+
+    /**
+     * Sets after how long without a text or binary message either way connections established from now on are
+     * closed, never by default. Zero never closes them.
+     */
+    public void setIdleTimeout(Duration timeout) {
+        if (timeout.isNegative()) throw new IllegalArgumentException("Negative idle timeout: " + timeout);
+        this.idleTimeout = timeout;
+    }
+
+    /**
+     * Sets how long connections accepted from now on have to complete their handshake, 10 seconds by default.
+     */
+    public void setHandshakeTimeout(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("Handshake timeout must be positive: " + timeout);
+        this.handshakeTimeout = timeout;
+    }
+
+    /**
+     * Sets the longest frame payload accepted from connections established from now on, 16 MiB by default.
+     * Connections sending longer frames are closed.
+     */
+    public void setMaxFrameSize(int bytes) {
+        if (bytes < 125) throw new IllegalArgumentException("Maximum frame size below 125: " + bytes);
+        this.maxFrameSize = bytes;
+    }
+
+    /**
+     * Sets the longest message accepted from connections established from now on, 16 MiB by default, counting
+     * the payloads of its fragments once decompressed. Connections sending longer messages are closed with status
+     * 1009. Messages streamed to a fragment handler are never held whole, only their decompression is limited.
+     */
+    public void setMaxMessageSize(int bytes) {
+        if (bytes < 125) throw new IllegalArgumentException("Maximum message size below 125: " + bytes);
+        this.maxMessageSize = bytes;
+    }
+
+    /**
+     * Sets the water marks of the bytes waiting to be written to each connection established from now on,
+     * 256 KiB and 1 MiB by default, and what happens to frames sent beyond the high one.
+     */
+    public void setWriteQueue(int lowWaterMark, int highWaterMark, SlowConsumerPolicy policy) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark)
+            throw new IllegalArgumentException("Invalid water marks: " + lowWaterMark + ", " + highWaterMark);
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.slowConsumerPolicy = Objects.requireNonNull(policy);
+    }
+
+    /**
+     * Sets whether connections established from now on may negotiate permessage-deflate, which they do by
+     * default, and from how many bytes on messages are compressed, 256 by default.
+     *
+     * @param contextTakeover whether compression keeps its context from one message to the next when the client
+     *                        allows it, which compresses similar messages better but keeps a compressor per
+     *                        connection and makes broadcasts compress once per connection rather than once
+     */
+    public void setCompression(boolean enabled, int threshold, boolean contextTakeover) {
+        if (threshold < 0) throw new IllegalArgumentException("Negative compression threshold: " + threshold);
+        this.compression = enabled;
+        this.compressionThreshold = threshold;
+        this.compressionContextTakeover = contextTakeover;
+    }
+
+    /**
+     * Sets whether connections established from now on read frame payloads into pooled buffers off the heap rather
+     * than on it, which spares a copy when a fragment handler passes them on to a channel.
+     */
+    public void setDirectBuffers(boolean direct) {
+        this.directBuffers = direct;
+    }
+
+    /**
+     * Whether fewer than the high water mark of bytes wait to be written to the connection, false for an unknown
+     * or closed one.
+     */
+    public boolean isWritable(String id) {
+        WebSocketConnection c = connection(id);
+        return c != null && c.writable;
+    }
+
+    /**
+     * The timeouts pending on the server's wheel, at most one per connection.
+     */
+    int pendingTimeouts() {
+        return timers.pending();
+    }
+
     public void send(String id, String text) {
-        Actor c = id2Connection.getOrDefault(id, null);
-        if (c != null) c.post("send", text, true);
+        WebSocketConnection c = connection(id);
+        if (c != null) c.remote.send(text, true);
     }
 
     public void send(String id, byte[] bin) {
-        Actor c = id2Connection.getOrDefault(id, null);
-        if (c != null) c.post("send", bin, true);
+        WebSocketConnection c = connection(id);
+        if (c != null) c.remote.send(bin, true);
     }
 
     public void sendAll(String text) {
-        id2Connection.forEach((id, connection) -> connection.post("send", text, true));
+        broadcast((byte) 0x1, text.getBytes(StandardCharsets.UTF_8));
     }
 
     public void sendAll(byte[] bin) {
-        id2Connection.forEach((id, connection) -> connection.post("send", bin, true));
+        broadcast((byte) 0x2, bin);
+    }
+
+    /**
+     * Subscribes the open connection with the id to the topic. Connections leave their topics when they close.
+     */
+    public void subscribe(String id, String topic) {
+        shards.route(id, Topics.class).subscribe(id, Objects.requireNonNull(topic));
+    }
+
+    public void unsubscribe(String id, String topic) {
+        shards.route(id, Topics.class).unsubscribe(id, Objects.requireNonNull(topic));
+    }
+
+    /**
+     * Sends the message to every connection subscribed to the topic. Each shard sends it to its own subscribers,
+     * in parallel, so it may reach them after messages sent to them directly later on.
+     */
+    public void publish(String topic, String text) {
+        publish(topic, (byte) 0x1, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void publish(String topic, byte[] bin) {
+        publish(topic, (byte) 0x2, bin);
+    }
+
+    private void publish(String topic, byte opcode, byte[] payload) {
+        List<Topics> all = shards.all(Topics.class);
+        Publication p = new Publication(opcode, payload, all.size());
+        for (Topics shard : all) shard.publish(topic, p);
+    }
+
+    private void broadcast(byte opcode, byte[] payload) {
+        Publication p = new Publication(opcode, payload, 1);
+        p.send(connections(), false);
+    }
+
+    /*
+     * A message for many connections, encoded at most once as it is and once compressed without context however
+     * many shards send it. It holds a reference to both frames until every shard is done with it.
+     */
+    private final class Publication {
+        private final byte opcode;
+        private final byte[] payload;
+        private final AtomicInteger senders;
+        private EncodedFrame raw, deflated;
+        private boolean compressed;
+
+        Publication(byte opcode, byte[] payload, int senders) {
+            this.opcode = opcode;
+            this.payload = payload;
+            this.senders = new AtomicInteger(senders);
+        }
+
+        private synchronized EncodedFrame raw() {
+            // Into a direct buffer the event loops write as it is
+            if (raw == null) raw = EncodedFrame.of(true, opcode, payload, false, loops != null, 1);
+            return raw;
+        }
+
+        /**
+         * @return null if compressing does not make it smaller
+         */
+        private synchronized EncodedFrame deflated() {
+            if (!compressed) {
+                compressed = true;
+                byte[] c = PerMessageDeflate.compressShared(payload);
+                if (c != null) deflated = EncodedFrame.of(true, opcode, c, true, loops != null, 1);
+            }
+            return deflated;
+        }
+
+        /**
+         * Sends to the connections, then gives up the caller's share of the frames. Connections compressing
+         * without context share the compressed frame, the others compress their own.
+         *
+         * @param shard whether a shard sends it, which must not wait on the full mailbox of one of its connections:
+         *              the slow consumer policy bounds what they queue instead
+         */
+        void send(Collection<WebSocketConnection> targets, boolean shard) {
+            int plain = 0, shared = 0;
+            for (WebSocketConnection c : targets) {
+                if (!c.compresses(payload.length)) plain ++;
+                else if (c.deflate.serverNoContextTakeover) shared ++;
+            }
+            EncodedFrame d = shared > 0 ? deflated() : null;
+            if (d == null) {
+                plain += shared;
+                shared = 0;
+            }
+            EncodedFrame r = plain > 0 ? raw() : null;
+            // All the references at once rather than one per connection, the other shards count on the same frames
+            if (r != null) r.retain(plain);
+            if (d != null) d.retain(shared);
+            for (WebSocketConnection c : targets) {
+                Connection to = shard ? c.internal : c.remote;
+                if (c.compresses(payload.length) && !c.deflate.serverNoContextTakeover) {
+                    to.sendMessage(opcode, payload);
+                    continue;
+                }
+                EncodedFrame f = c.compresses(payload.length) && d != null ? d : r;
+                if (!to.send(f)) f.release();
+            }
+            if (senders.decrementAndGet() > 0) return;
+            synchronized (this) {
+                if (raw != null) raw.release();
+                if (deflated != null) deflated.release();
+            }
+        }
     }
 
     public void close(String id) {
-        Actor c = id2Connection.getOrDefault(id, null);
-        if (c != null) c.post("close");
+        WebSocketConnection c = connection(id);
+        if (c != null) c.remote.close();
+    }
+
+    /**
+     * Sends like send, completing with whether the frame was queued for writing, false for an unknown id or
+     * a frame dropped by the slow consumer policy.
+     */
+    public CompletableFuture<Boolean> sendAsync(String id, String text) {
+        WebSocketConnection c = connection(id);
+        return c != null ? c.requests.send(text, true) : CompletableFuture.completedFuture(false);
+    }
+
+    public CompletableFuture<Boolean> sendAsync(String id, byte[] bin) {
+        WebSocketConnection c = connection(id);
+        return c != null ? c.requests.send(bin, true) : CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Closes like close, completing with whether this call closed the connection.
+     */
+    public CompletableFuture<Boolean> closeAsync(String id) {
+        WebSocketConnection c = connection(id);
+        return c != null ? c.requests.close() : CompletableFuture.completedFuture(false);
     }
 
     public void start() {
         running = true;
-        pool.submit(this::accept);
-        pool.submit(this::listen);
+        if (loops != null) {
+            for (EventLoop loop : loops) loop.thread.start();
+        } else {
+            pool.submit(this::accept);
+            pool.submit(this::listen);
+        }
         logInfo("WebSocket server started. Listening on port " + getPort() + " ... ");
     }
 
     public void stop() {
         running = false;
-        id2Connection.forEach((id, connection) -> connection.post("close"));
+        for (WebSocketConnection c : connections()) c.internal.close();
+        // Their timers stop with the wheel, nothing else would close them
+        if (loops != null) for (EventLoop loop : loops) for (WebSocketConnection c : loop.handshakes) c.internal.close();
         try {
-            socket.close();
+            if (loops != null) {
+                channel.close();
+                for (EventLoop loop : loops) loop.selector.wakeup();
+            } else {
+                socket.close();
+            }
             logInfo("Server stopped");
         } catch (IOException e) {
             logError("Server stopping error", e);
         }
+        timers.close();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Stopped by the hook, or otherwise while the JVM shuts down
+        }
+        logger.close();
     }
 
-    public void handleOpen(WebSocketConnection c) {
-        id2Connection.put(c.id, c);
+    public int handleOpen(WebSocketConnection c) {
         int status = onOpen.apply(c.id);
-        if (status != 0) logInfo("onOpen exited on status code: " + status);
+        if (status != 0) logWarn("onOpen exited on status code: " + status);
+        return status;
     }
 
-    public void handleClose(WebSocketConnection c) {
+    public int handleClose(WebSocketConnection c) {
         int status = onClose.apply(c.id);
-        id2Connection.remove(c.id);
-        if (status != 0) logInfo("onClose exited on status code: " + status);
+        if (status != 0) logWarn("onClose exited on status code: " + status);
+        return status;
     }
 
-    public void handleText(WebSocketConnection c, String text) {
+    public int handleText(WebSocketConnection c, String text) {
         int status = onText.apply(c.id, text);
-        if (status != 0) logInfo("onText exited on status code: " + status);
+        if (status != 0) logWarn("onText exited on status code: " + status);
+        return status;
     }
 
-    public void handleBinary(WebSocketConnection c, byte[] bin) {
+    public int handleBinary(WebSocketConnection c, byte[] bin) {
         int status = onBinary.apply(c.id, bin);
-        if (status != 0) logInfo("onBinary exited on status code: " + status);
+        if (status != 0) logWarn("onBinary exited on status code: " + status);
+        return status;
     }
 
-    public void handleInfo(WebSocketConnection c, String log) {
-        logInfo("(" + c.id + ") " + log);
+    public int handleFragment(WebSocketConnection c, boolean text, ByteBuffer data, boolean last) {
+        FragmentHandler handler = onFragment;
+        int status = 0;
+        try {
+            if (handler != null) status = handler.apply(c.id, text, data, last);
+        } finally {
+            BufferPool.release(data);
+        }
+        if (status != 0) logWarn("onFragment exited on status code: " + status);
+        return status;
     }
 
-    public void handleError(WebSocketConnection c, String log, Throwable e) {
-        logError("(" + c.id + ") " + log, e);
+    public int handleWritable(WebSocketConnection c, boolean writable) {
+        int status = onWritable.apply(c.id, writable);
+        if (status != 0) logWarn("onWritable exited on status code: " + status);
+        return status;
     }
 
     private void accept() {
         try {
-            new WebSocketConnection(this, socket.accept());
+            Socket s = socket.accept();
+            // Each handshake is read on a pool thread, so a client slow to send one holds up no other
+            pool.execute(() -> new WebSocketConnection(this, s));
         } catch (IOException e) {
             logError("Client accepting error", e);
         } finally {
@@ -158,87 +624,660 @@ public class WebSocketServer extends Actor {
     }
 
     private void listen() {
-        id2Connection.forEach((id, connection) -> {
+        for (WebSocketConnection connection : connections()) {
             try {
-                if (!connection.closed && connection.socket.getInputStream().available() > 0)
-                    connection.post("checkInput");
+                if (!connection.closed && !connection.inputPending && connection.socket.getInputStream().available() > 0) {
+                    connection.inputPending = true;
+                    connection.internal.checkInput();
+                }
             } catch (IOException e) {
                 logError("Input checking error", e);
-                connection.post("close");
+                connection.internal.close();
             }
-        });
+        }
         if (running) pool.submit(this::listen);
     }
 
+    /*
+     * A selector thread owning the connections assigned to it, the first one also accepting them. Readiness drives
+     * reading and decoding here; connection actors do their own writing and hear from the loop only when a socket
+     * they could not write to becomes writable again.
+     */
+    private class EventLoop {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Its connections still in their handshake, until closed or known to their shard
+        private final Set<WebSocketConnection> handshakes = ConcurrentHashMap.newKeySet();
+        private int next;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, "websocket-loop-" + port + "-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs the task on the loop thread, where the selection keys are changed.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void run() {
+            while (running) {
+                try {
+                    selector.select(this::process);
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        try {
+                            task.run();
+                        } catch (CancelledKeyException e) {
+                            // Closed by its actor meanwhile
+                        }
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    if (running) logError("Event loop error", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logError("Selector closing error", e);
+            }
+        }
+
+        private void process(SelectionKey key) {
+            if (!key.isValid()) return;
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            WebSocketConnection c = (WebSocketConnection) key.attachment();
+            try {
+                if (key.isWritable()) {
+                    key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                    c.transport.flush();
+                }
+                if (key.isValid() && key.isReadable()) c.read();
+            } catch (CancelledKeyException e) {
+                // Closed by its actor meanwhile
+            }
+        }
+
+        private void accept() {
+            try {
+                for (SocketChannel ch; (ch = channel.accept()) != null; ) {
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    EventLoop loop = loops[Math.floorMod(next ++, loops.length)];
+                    WebSocketConnection c = new WebSocketConnection(ch, loop);
+                    loop.handshakes.add(c);
+                    loop.execute(() -> c.register(loop));
+                }
+            } catch (IOException e) {
+                logError("Client accepting error", e);
+            }
+        }
+    }
+
+    private Router<Shard> shards(int n) {
+        return Router.of(Router.Strategy.CONSISTENT_HASHING, n, Shard::new);
+    }
+
+    /**
+     * The open connection with the id, looked up in its shard without locking.
+     */
+    private WebSocketConnection connection(String id) {
+        return shards.route(id).connections.get(id);
+    }
+
+    /**
+     * The open connections, as far as each shard has registered them.
+     */
+    private List<WebSocketConnection> connections() {
+        List<WebSocketConnection> list = new ArrayList<>();
+        for (Shard s : shards.routees()) list.addAll(s.connections.values());
+        return list;
+    }
+
+    /**
+     * Whether lines of the level are logged, for callers to check before building them.
+     */
+    private boolean logs(LogLevel level) {
+        return logger.enabled(level);
+    }
+
     private void logInfo(String message) {
-        logger.println("[" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")) + "] " + message);
+        logger.log(LogLevel.INFO, message, null);
+    }
+
+    private void logWarn(String message) {
+        logger.log(LogLevel.WARN, message, null);
     }
 
     private void logError(String message, Throwable e) {
-        logInfo(message);
-        e.printStackTrace(logger);
+        logger.log(LogLevel.ERROR, message, e);
     }
 
+    /*
+     * Owns the connections whose ids hash to it: registers them and runs their callbacks, so that callbacks of
+     * different connections run in parallel. Only the shard writes its registry, anyone may read it.
+     */
+    private class Shard extends Actor {
+        private final Map<String, WebSocketConnection> connections = new ConcurrentHashMap<>();
+        // Written and read by the shard only
+        private final Map<String, Set<WebSocketConnection>> topics = new HashMap<>();
+
+        Shard() {
+            super(Dispatcher.defaultDispatcher());
+            // Every connection of the shard reports to it, let it drain longer batches
+            setThroughput(SHARD_THROUGHPUT);
+        }
+
+        @Override
+        protected void onMessageError(Throwable e) {
+            logError("Message executing error", e);
+        }
+
+        private void handleOpen(WebSocketConnection c) {
+            connections.put(c.id, c);
+            if (c.loop != null) c.loop.handshakes.remove(c);
+            WebSocketServer.this.handleOpen(c);
+        }
+
+        private void handleClose(WebSocketConnection c) {
+            WebSocketServer.this.handleClose(c);
+            // Not a later connection that came with the same key
+            connections.remove(c.id, c);
+            for (String topic : c.topics) leave(c, topic);
+            c.topics.clear();
+        }
+
+        private void subscribe(String id, String topic) {
+            WebSocketConnection c = connections.get(id);
+            if (c != null && c.topics.add(topic)) topics.computeIfAbsent(topic, t -> new HashSet<>()).add(c);
+        }
+
+        private void unsubscribe(String id, String topic) {
+            WebSocketConnection c = connections.get(id);
+            if (c != null && c.topics.remove(topic)) leave(c, topic);
+        }
+
+        private void leave(WebSocketConnection c, String topic) {
+            Set<WebSocketConnection> subscribers = topics.get(topic);
+            if (subscribers != null && subscribers.remove(c) && subscribers.isEmpty()) topics.remove(topic);
+        }
+
+        private void publish(String topic, Publication p) {
+            p.send(topics.getOrDefault(topic, Set.of()), true);
+        }
+
+        private void handleText(WebSocketConnection c, String text) {
+            WebSocketServer.this.handleText(c, text);
+        }
+
+        private void handleBinary(WebSocketConnection c, byte[] bin) {
+            WebSocketServer.this.handleBinary(c, bin);
+        }
+
+        private void handleFragment(WebSocketConnection c, boolean text, ByteBuffer data, boolean last) {
+            WebSocketServer.this.handleFragment(c, text, data, last);
+        }
+
+        private void handleWritable(WebSocketConnection c, boolean writable) {
+            WebSocketServer.this.handleWritable(c, writable);
+        }
+    }
 
     private class WebSocketConnection extends Actor {
         private boolean closed = false;
+        private volatile boolean inputPending = false;
         private Socket socket;
         private String id;
-        private Actor server;
+        private volatile Events server;
+        private final Connection remote = proxy(Connection.class);
+        // For the server's own threads, the event loops, the timers, the pool and the shards, which must never wait on
+        // a full mailbox
+        private final Connection internal = unboundedProxy(Connection.class);
+        private final Requests requests = proxy(Requests.class, requestTimeout);
         private InputStream inputStream;
         private OutputStream outputStream;
-        private List<Frame> bufferedFrames = new ArrayList<>();
+        private WritableByteChannel output;
+        // The fragments of the message being received, and their length
+        private final List<ByteBuffer> fragments = new ArrayList<>();
+        private int messageLength;
+        private byte messageOpcode;
+        private boolean messageCompressed, messageStreamed;
+        private PerMessageDeflate deflate;
+        private final int compressionThreshold = WebSocketServer.this.compressionThreshold;
+        private final boolean directBuffers = WebSocketServer.this.directBuffers;
+        private final FrameDecoder decoder = new FrameDecoder(maxFrameSize, directBuffers);
+        private final int maxMessageSize = WebSocketServer.this.maxMessageSize;
+        private ByteBuffer inbound = ByteBuffer.allocate(INBOUND_BUFFER);
+        // Non-blocking transport: the channel and its writes belong to the actor, the rest to the event loop
+        private SocketChannel channel;
+        private EventLoop loop;
+        private Transport transport;
+        // Views of the frames waiting to be written, and the frames to release once they are
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private final ArrayDeque<EncodedFrame> pendingFrames = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+        private final int lowWaterMark = WebSocketServer.this.lowWaterMark, highWaterMark = WebSocketServer.this.highWaterMark;
+        private final SlowConsumerPolicy slowConsumerPolicy = WebSocketServer.this.slowConsumerPolicy;
+        private long queuedBytes;
+        private boolean awaitingWritable;
+        private volatile boolean writable = true;
+        private Mailbox mailbox;
+        private SelectionKey key;
+        private boolean upgraded, readSuspended;
+        // The topics it is subscribed to, kept by its shard
+        private final Set<String> topics = new HashSet<>();
+        private HandshakeParser handshake = new HandshakeParser();
+        // Timeouts, all on the server's timing wheel with one timer per connection at a time
+        private final long pingInterval = WebSocketServer.this.pingInterval.toNanos(), pongTimeout = WebSocketServer.this.pongTimeout.toNanos();
+        private final long idleTimeout = WebSocketServer.this.idleTimeout.toNanos(), handshakeDeadline;
+        private final Runnable heartbeat = internal::heartbeat;
+        private TimingWheel.Timeout timer;
+        private long lastReceived, lastMessage, pingSent;
+        private boolean awaitingPong;
 
         WebSocketConnection(WebSocketServer server, Socket socket) {
-            this.server = server;
+            // Application sends to a connection that cannot keep up hold back their sender instead of queueing
+            // without limit, the server's own messages go through internal and never wait
+            super(server.blocking, Mailbox.bounded(CONNECTION_MAILBOX, Mailbox.Overflow.BLOCK));
+            this.server = server.events;
             this.socket = socket;
+            this.handshakeDeadline = System.nanoTime() + handshakeTimeout.toNanos();
             try {
                 inputStream = socket.getInputStream();
-                outputStream = socket.getOutputStream();
-                id = handShake();
-                if (id == null) {
-                    logInfo("Unsuccessful handshake attempted: " + socket.getInetAddress().getHostAddress());
-                    close();
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+                output = Channels.newChannel(outputStream);
+                // The handshake is read right here, within the deadline
+                id = handShake(readHandshake());
+                socket.setSoTimeout(0);
+                // Not an actor yet: there is no batch to flush after
+                flushOutbound();
+                established();
+                // Frames sent right behind the request were read with it
+                if (id != null && inbound.position() > 0) {
+                    inputPending = true;
+                    internal.checkInput();
                 }
-                logInfo("Connection established: " + socket.getInetAddress().getHostAddress());
-                server.post("handleOpen", this);
             } catch (IOException e) {
                 logError("Connection establishing error", e);
+                close();
             }
         }
 
-        @Override
-        protected void executeMethod(Method m, Object[] arguments) {
+        WebSocketConnection(SocketChannel channel, EventLoop loop) {
+            this(channel, loop, Mailbox.bounded(CONNECTION_MAILBOX, Mailbox.Overflow.BLOCK));
+        }
+
+        private WebSocketConnection(SocketChannel channel, EventLoop loop, Mailbox mailbox) {
+            super(Dispatcher.defaultDispatcher(), mailbox);
+            this.mailbox = mailbox;
+            this.server = events;
+            this.socket = channel.socket();
+            this.channel = channel;
+            this.loop = loop;
+            this.transport = unboundedProxy(Transport.class);
+            // The loop reads straight into it rather than through a temporary direct buffer of the channel
+            if (directBuffers) inbound = ByteBuffer.allocateDirect(INBOUND_BUFFER);
+            this.handshakeDeadline = System.nanoTime() + handshakeTimeout.toNanos();
+            schedule(handshakeDeadline);
+        }
+
+        private void established() {
+            if (id == null) {
+                logInfo("Unsuccessful handshake attempted: " + socket.getInetAddress().getHostAddress());
+                close();
+                return;
+            }
+            // Everything about this connection goes to its shard from now on, keeping its events in order
+            this.server = shards.route(id, Events.class);
+            logInfo("Connection established: " + socket.getInetAddress().getHostAddress());
+            this.server.handleOpen(this);
+            lastReceived = lastMessage = System.nanoTime();
+            if (timer != null) timer.cancel();
+            heartbeat();
+        }
+
+        private void open(HandshakeParser request) {
+            if (closed) return;
+            id = handShake(request);
+            established();
+        }
+
+        /*
+         * Event loop side of the non-blocking transport.
+         */
+
+        private void register(EventLoop loop) {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                internal.close();
+            }
+        }
+
+        private void read() {
             try {
-                m.invoke(this, arguments);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                logError("Message executing error", e);
+                int n = channel.read(inbound);
+                if (n < 0) {
+                    key.interestOps(0);
+                    internal.close();
+                    return;
+                }
+                decode();
+            } catch (IOException e) {
+                key.interestOps(0);
+                logError("Input accepting error", e);
+                internal.close();
+            }
+        }
+
+        private void decode() throws IOException {
+            inbound.flip();
+            if (!upgraded) {
+                if (!handshake.parse(inbound)) {
+                    inbound.compact();
+                    return;
+                }
+                upgraded = true;
+                transport.open(handshake);
+                if (handshake.status() != 101) {
+                    // Answered and closed by the actor, nothing more to read
+                    key.interestOps(0);
+                    inbound.clear();
+                    return;
+                }
+                handshake = null;
+            }
+            for (ByteBuffer data; ; ) {
+                // Stop reading while the actor is behind, it asks for more once it has caught up
+                if (mailbox.depth() >= CONNECTION_MAILBOX / 2) {
+                    readSuspended = true;
+                    key.interestOpsAnd(~SelectionKey.OP_READ);
+                    transport.resumeReading();
+                    break;
+                }
+                if ((data = decoder.decode(inbound)) == null) break;
+                transport.receive(receivedFrame(data));
             }
+            inbound.compact();
+        }
+
+        private void resumeRead() {
+            if (!key.isValid() || !readSuspended) return;
+            readSuspended = false;
+            key.interestOpsOr(SelectionKey.OP_READ);
+            try {
+                // Bytes read before suspending may already hold frames
+                decode();
+            } catch (IOException e) {
+                key.interestOps(0);
+                logError("Input accepting error", e);
+                internal.close();
+            }
+        }
+
+        /*
+         * Actor side.
+         */
+
+        @Override
+        protected void onMessageError(Throwable e) {
+            logError("Message executing error", e);
+        }
+
+        /**
+         * Gives back what the messages left after closing hold: the references to encoded frames, and the pooled
+         * payloads of received frames. Requests among them fail like any ask of an exited actor.
+         */
+        @Override
+        protected void onUndelivered(Object[] arguments) {
+            for (Object a : arguments) {
+                if (a instanceof EncodedFrame f) f.release();
+                else if (a instanceof Frame f) f.release();
+            }
+        }
+
+        /**
+         * Runs when the timer is due, closing the connection if it timed out and pinging it if it has been silent,
+         * then sets the timer for whatever is due next. Activity in between only moves the times along.
+         */
+        private void heartbeat() {
+            if (closed) return;
+            long now = System.nanoTime();
+            if (id == null) {
+                if (now - handshakeDeadline >= 0) {
+                    logInfo("Handshake timed out");
+                    close();
+                } else {
+                    schedule(handshakeDeadline);
+                }
+                return;
+            }
+            if (idleTimeout > 0 && now - lastMessage >= idleTimeout) {
+                close(1001, "Idle timeout");
+                return;
+            }
+            if (awaitingPong && now - pingSent >= pongTimeout) {
+                close(1001, "Heartbeat timeout");
+                return;
+            }
+            if (!awaitingPong && pingInterval > 0 && now - lastReceived >= pingInterval) {
+                awaitingPong = true;
+                pingSent = now;
+                sendFrame(true, (byte) 0x9, new byte[0]);
+            }
+            long next = Long.MAX_VALUE;
+            if (idleTimeout > 0) next = lastMessage + idleTimeout - now;
+            if (awaitingPong) next = Math.min(next, pingSent + pongTimeout - now);
+            else if (pingInterval > 0) next = Math.min(next, lastReceived + pingInterval - now);
+            if (next != Long.MAX_VALUE) schedule(now + next);
+        }
+
+        private void schedule(long deadline) {
+            // One timer at a time: a pong may reschedule after the timer fired and before its heartbeat ran
+            if (timer != null) timer.cancel();
+            // The wheel stops with the server
+            if (running) timer = timers.schedule(heartbeat, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Closes with a close frame telling the client why.
+         */
+        private void close(int status, String reason) {
+            byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = new byte[2 + text.length];
+            payload[0] = (byte) (status >> 8);
+            payload[1] = (byte) status;
+            System.arraycopy(text, 0, payload, 2, text.length);
+            logInfo(reason + ", closing");
+            sendFrame(true, (byte) 0x8, payload);
+            close();
         }
 
         private void checkInput() {
             if (closed) return;
             try {
-                acceptMessage();
+                // Bytes left from the handshake may be all there is
+                if (inbound.position() == 0 || inputStream.available() > 0) {
+                    int n = inputStream.read(inbound.array(), inbound.arrayOffset() + inbound.position(), inbound.remaining());
+                    if (n < 0) throw new EOFException();
+                    inbound.position(inbound.position() + n);
+                }
+                inbound.flip();
+                for (ByteBuffer data; !closed && (data = decoder.decode(inbound)) != null; ) acceptMessage(receivedFrame(data));
+                inbound.compact();
             } catch (IOException e) {
                 logError("Input accepting error", e);
                 if (!closed) close();
+            } finally {
+                // Only once the bytes are consumed, or listen could see them and ask for input that never comes
+                inputPending = false;
             }
         }
 
-        private void send(String text, Boolean FIN) {
-            if (closed) return;
-            sendFrame(new Frame(FIN, (byte) 1, text.getBytes(StandardCharsets.UTF_8)));
+        private void receive(Frame f) {
+            if (closed) {
+                f.release();
+                return;
+            }
+            try {
+                acceptMessage(f);
+            } catch (IOException e) {
+                logError("Input accepting error", e);
+                if (!closed) close();
+            }
         }
 
-        private void send(byte[] data, Boolean FIN) {
-            if (closed) return;
-            sendFrame(new Frame(FIN, (byte) 2, data));
+        private void resumeReading() {
+            if (!closed) loop.execute(this::resumeRead);
         }
 
-        private void close() {
-            if (closed) return;
+        /**
+         * Called by the event loop once the socket takes writes again.
+         */
+        private void flush() {
+            awaitingWritable = false;
+            flushOutbound();
+        }
+
+        @Override
+        protected void onBatchEnd() {
+            flushOutbound();
+        }
+
+        /**
+         * Writes as much of the queue as the socket takes, many frames per call.
+         */
+        private void flushOutbound() {
+            if (closed || awaitingWritable || pendingWrites.isEmpty()) return;
+            try {
+                if (channel == null) {
+                    for (ByteBuffer b; (b = pendingWrites.poll()) != null; ) {
+                        queuedBytes -= b.remaining();
+                        while (b.hasRemaining()) output.write(b);
+                        pendingFrames.poll().release();
+                    }
+                    outputStream.flush();
+                } else {
+                    while (!pendingWrites.isEmpty()) {
+                        int n = 0;
+                        for (ByteBuffer b : pendingWrites) {
+                            gather[n ++] = b;
+                            if (n == gather.length) break;
+                        }
+                        queuedBytes -= channel.write(gather, 0, n);
+                        boolean full = gather[n - 1].hasRemaining();
+                        Arrays.fill(gather, 0, n, null);
+                        for (ByteBuffer b; (b = pendingWrites.peek()) != null && !b.hasRemaining(); pendingWrites.poll())
+                            pendingFrames.poll().release();
+                        if (full) {
+                            awaitWritable();
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logError("Frame sending error", e);
+                discardPending();
+                close();
+                return;
+            }
+            if (!writable && queuedBytes <= lowWaterMark) {
+                writable = true;
+                server.handleWritable(this, true);
+            }
+        }
+
+        private void discardPending() {
+            pendingWrites.clear();
+            for (EncodedFrame f; (f = pendingFrames.poll()) != null; ) f.release();
+            queuedBytes = 0;
+        }
+
+        private void awaitWritable() {
+            awaitingWritable = true;
+            loop.execute(() -> {
+                if (key.isValid()) key.interestOpsOr(SelectionKey.OP_WRITE);
+            });
+        }
+
+        /**
+         * Queues the frame to be written at the end of the batch, or by the slow consumer policy drops it or
+         * closes the connection. Releases the frame once written or dropped.
+         *
+         * @return whether the frame was queued
+         */
+        private boolean write(EncodedFrame f) {
+            if (!admits(f.size())) {
+                f.release();
+                return false;
+            }
+            queue(f);
+            return true;
+        }
+
+        /**
+         * Applies the slow consumer policy to a frame of the size, dropping it or closing the connection if the
+         * queue is past the high water mark.
+         *
+         * @return whether the frame may be queued
+         */
+        private boolean admits(int size) {
+            if (queuedBytes + size <= highWaterMark || slowConsumerPolicy == SlowConsumerPolicy.BACKPRESSURE) return true;
+            logWarn("Slow consumer, " + queuedBytes + " bytes queued: "
+                    + (slowConsumerPolicy == SlowConsumerPolicy.DROP ? "frame dropped" : "closing"));
+            if (slowConsumerPolicy == SlowConsumerPolicy.CLOSE) close();
+            return false;
+        }
+
+        private void queue(EncodedFrame f) {
+            pendingWrites.add(f.view());
+            pendingFrames.add(f);
+            queuedBytes += f.size();
+            if (writable && queuedBytes > highWaterMark) {
+                writable = false;
+                server.handleWritable(this, false);
+            }
+        }
+
+        private boolean send(String text, boolean FIN) {
+            if (closed) return false;
+            return sendFrame(FIN, (byte) 1, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private boolean send(byte[] data, boolean FIN) {
+            if (closed) return false;
+            return sendFrame(FIN, (byte) 2, data);
+        }
+
+        private boolean sendMessage(byte opcode, byte[] payload) {
+            if (closed) return false;
+            return sendFrame(true, opcode, payload);
+        }
+
+        private boolean send(EncodedFrame frame) {
+            if (closed) {
+                frame.release();
+                return false;
+            }
+            lastMessage = System.nanoTime();
+            return sendFrame(frame);
+        }
+
+        private boolean close() {
+            if (closed) return false;
+            // Best effort for what is queued, like the answer to a closing request
+            flushOutbound();
+            if (closed) return false;
             closed = true;
+            // Until its shard forgets it, after onClose
+            writable = false;
             try {
                 if (inputStream != null) inputStream.close();
                 if (outputStream != null) outputStream.close();
@@ -252,175 +1291,242 @@ public class WebSocketServer extends Actor {
                     logError("Connection closing error", e);
                 }
             }
-            server.post("handleClose", this);
+            discardPending();
+            discardMessage();
+            if (loop != null) loop.handshakes.remove(this);
+            if (timer != null) timer.cancel();
+            if (deflate != null) deflate.release();
+            if (id != null) server.handleClose(this);
+            exit();
+            return true;
+        }
+
+        // The id is only prepended to lines of levels that are logged
+        private void logDebug(String log) {
+            if (logger.enabled(LogLevel.DEBUG)) logger.log(LogLevel.DEBUG, "(" + id + ") " + log, null);
         }
 
         private void logInfo(String log) {
-            server.post("handleInfo", this, log);
-        }
-
-        private void logError(String log, Exception e) {
-            server.post("handleError", this, log, e);
-        }
-
-        private void acceptMessage() throws IOException {
-            Frame f = acceptFrame();
-            if (f == null) throw new IOException();
-            if (!f.MASK) throw new IOException();
-            bufferedFrames.add(f);
-            if (f.FIN) {
-                byte[] data = concatenateFrames(bufferedFrames);
-                switch (f.opcode) {
-                    case (byte) 0x1:
-                        logInfo("Text received");
-                        server.post("handleText", this, new String(data, StandardCharsets.UTF_8));
-                        break;
-                    case (byte) 0x2:
-                        logInfo("Binary received");
-                        server.post("handleBinary", this, data);
-                        break;
-                    case (byte) 0x8:
-                        logInfo("Closing request received");
-                        sendFrame(new Frame(true, (byte) 0x8, f.bData));
-                        if (!closed) close();
-                        break;
-                    case (byte) 0x9:
-                        logInfo("Ping received");
-                        sendFrame(new Frame(true, (byte) 0xa, f.bData));
-                        break;
-                    case (byte) 0xa:
-                        logInfo("Pong received");
-                        break;
-                }
-                bufferedFrames = new ArrayList<>();
+            if (logger.enabled(LogLevel.INFO)) logger.log(LogLevel.INFO, "(" + id + ") " + log, null);
+        }
+
+        private void logWarn(String log) {
+            if (logger.enabled(LogLevel.WARN)) logger.log(LogLevel.WARN, "(" + id + ") " + log, null);
+        }
+
+        private void logError(String log, Throwable e) {
+            if (logger.enabled(LogLevel.ERROR)) logger.log(LogLevel.ERROR, "(" + id + ") " + log, e);
+        }
+
+        /**
+         * Releases the payload of the frame once done with it, unless it is kept for the rest of the message
+         * or handed on to a fragment handler.
+         */
+        private void acceptMessage(Frame f) throws IOException {
+            try {
+                acceptFrame(f);
+            } finally {
+                f.release();
+            }
+        }
+
+        private void acceptFrame(Frame f) throws IOException {
+            if (!f.MASK) throw new IOException("Unmasked client frame");
+            lastReceived = System.nanoTime();
+            // Only RSV1 has a meaning, on the first frame of a message with permessage-deflate
+            if (f.RSV != 0 && (f.RSV != 0x40 || deflate == null || f.opcode == 0 || f.opcode >= 0x8))
+                throw new IOException("Unexpected RSV bits: " + f.RSV);
+            // Control frames may come between the fragments of a message
+            switch (f.opcode) {
+                case (byte) 0x8:
+                    logInfo("Closing request received");
+                    sendFrame(true, (byte) 0x8, bytes(f.data));
+                    if (!closed) close();
+                    return;
+                case (byte) 0x9:
+                    if (logs(LogLevel.DEBUG)) logDebug("Ping received");
+                    sendFrame(true, (byte) 0xa, bytes(f.data));
+                    return;
+                case (byte) 0xa:
+                    if (logs(LogLevel.DEBUG)) logDebug("Pong received");
+                    awaitingPong = false;
+                    // The timer is set for the pong deadline, which may be later than the next ping
+                    heartbeat();
+                    return;
+            }
+            lastMessage = lastReceived;
+            // Continuation frames carry opcode 0, the message type is the first fragment's
+            if (f.opcode != 0) {
+                messageOpcode = f.opcode;
+                messageCompressed = f.RSV != 0;
+                messageStreamed = onFragment != null;
             }
+            // Compressed fragments are inflated as they come, not once the message is whole
+            ByteBuffer data = messageCompressed ? ByteBuffer.wrap(deflate.decompress(f.data, f.FIN, maxMessageSize)) : f.take();
+            if (messageStreamed) {
+                server.handleFragment(this, messageOpcode == 0x1, data, f.FIN);
+                return;
+            }
+            // Each frame is within the maximum frame size, but a message may have any number of them
+            if ((long) messageLength + data.remaining() > maxMessageSize) {
+                BufferPool.release(data);
+                discardMessage();
+                close(1009, "Message too big");
+                return;
+            }
+            fragments.add(data);
+            messageLength += data.remaining();
+            if (!f.FIN) return;
+            ByteBuffer single = fragments.size() == 1 ? fragments.get(0) : null;
+            switch (messageOpcode) {
+                case (byte) 0x1:
+                    if (logs(LogLevel.DEBUG)) logDebug("Text received");
+                    // A heap buffer decodes into the string as it is
+                    server.handleText(this, single != null && single.hasArray()
+                            ? new String(single.array(), single.arrayOffset() + single.position(), single.remaining(), StandardCharsets.UTF_8)
+                            : new String(concatenateFragments(), StandardCharsets.UTF_8));
+                    break;
+                case (byte) 0x2:
+                    if (logs(LogLevel.DEBUG)) logDebug("Binary received");
+                    server.handleBinary(this, concatenateFragments());
+                    break;
+            }
+            discardMessage();
         }
 
-        private byte[] concatenateFrames(List<Frame> frames) {
-            int length = 0, i = 0;
-            for (Frame f : frames) length += f.length;
-            byte[] data = new byte[length];
-            for (Frame f : frames) {
-                System.arraycopy(f.bData, 0, data, i, f.bData.length);
-                i += f.bData.length;
+        private byte[] concatenateFragments() {
+            byte[] data = new byte[messageLength];
+            int i = 0;
+            for (ByteBuffer b : fragments) {
+                b.get(b.position(), data, i, b.remaining());
+                i += b.remaining();
             }
             return data;
         }
 
-        private Frame acceptFrame() throws IOException {
-            Frame f = new Frame();
-            // Accept head
-            f.bHead = (byte) inputStream.read();
-            f.FIN = (f.bHead >> 7 & (byte) 1) == 1;
-            f.opcode = (byte) (f.bHead & (byte) 0xf);
-            // Accept length
-            byte bLen = (byte) inputStream.read();
-            byte[] bLenX = new byte[0];
-            f.length = (bLen & (byte) 127);
-            if (f.length == 126) {
-                bLenX = new byte[2];
-                for (int i = 0; i < 2; i ++) bLenX[i] = (byte) inputStream.read();
-                f.length = (((int) bLenX[0]) << 8) + (int) bLenX[1];
-            } else if (f.length == 127) {
-                bLenX = new byte[8];
-                for (int i = 0; i < 8; i ++) bLenX[i] = (byte) inputStream.read();
-                f.length = 0;
-                for (int i = 0; i < 8; i++)
-                    f.length += ((int) bLenX[7 - i]) << (i * 8);
-            }
-            f.bLen = new byte[1 + bLenX.length];
-            f.bLen[0] = bLen;
-            System.arraycopy(bLenX, 0, f.bLen, 1, bLenX.length);
-            f.MASK = (f.bLen[0] >> 7 & (byte) 1) == 1;
-            f.bMasks = new byte[4];
-            f.bData = new byte[f.length];
-            // Accept masks & data
-            for (int i = 0; i < 4; i ++) f.bMasks[i] = (byte) inputStream.read();
-            for (int i = 0; i < f.length; i ++) f.bData[i] = (byte) inputStream.read();
-            // Unmask data
-            for (int i = 0; i < f.length; i ++) f.bData[i] = (byte) (f.bData[i] ^ f.bMasks[i % 4]);
-
-            logInfo("Frame received: " + f);
+        private void discardMessage() {
+            for (ByteBuffer b : fragments) BufferPool.release(b);
+            fragments.clear();
+            messageLength = 0;
+        }
+
+        private byte[] bytes(ByteBuffer b) {
+            byte[] data = new byte[b.remaining()];
+            b.get(b.position(), data);
+            return data;
+        }
+
+        private Frame receivedFrame(ByteBuffer data) {
+            Frame f = new Frame(decoder.fin(), decoder.opcode(), data);
+            f.MASK = decoder.masked();
+            f.RSV = decoder.rsv();
+            if (logs(LogLevel.DEBUG)) logDebug("Frame received: " + f);
             return f;
         }
 
-        private void sendFrame(Frame f) {
-            try {
-                byte[] encoded = new byte[1 + f.bLen.length + f.bData.length];
-                encoded[0] = f.bHead;
-                System.arraycopy(f.bLen, 0, encoded, 1, f.bLen.length);
-                System.arraycopy(f.bData, 0, encoded, 1 + f.bLen.length, f.bData.length);
-                outputStream.write(encoded);
-                outputStream.flush();
-                logInfo("Frame sent: " + f);
-            } catch (IOException e) {
-                logError("Frame sending error: " + f, e);
-            }
-        }
-
-        private String handShake() throws IOException {
-            String data = new Scanner(inputStream, StandardCharsets.UTF_8).useDelimiter("\\r\\n\\r\\n").next();
-            // System.out.println(data);
-            Matcher get = Pattern.compile("^GET").matcher(data);
-            if (get.find()) {
-                Matcher match = Pattern.compile("Sec-WebSocket-Key: (.*)").matcher(data);
-                if (match.find()) {
-                    try {
-                        String id = DatatypeConverter.printBase64Binary(
-                                MessageDigest.getInstance("SHA-1")
-                                        .digest((match.group(1) + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11")
-                                                .getBytes(StandardCharsets.UTF_8)));
-                        byte[] response = (
-                                "HTTP/1.1 101 Switching Protocols\r\n"
-                                        + "Connection: Upgrade\r\n"
-                                        + "Upgrade: websocket\r\n"
-                                        + "Sec-WebSocket-Accept: " + id + "\r\n\r\n"
-                        ).getBytes(StandardCharsets.UTF_8);
-                        outputStream.write(response, 0, response.length);
-                        return id;
-                    } catch (NoSuchAlgorithmException e) {
-                        logError("NoSuchAlgorithmException", e);
-                    }
-                }
+        private boolean sendFrame(boolean FIN, byte opcode, byte[] payload) {
+            if (opcode < 0x8) lastMessage = System.nanoTime();
+            // Whole data messages only, control frames and fragments go as they are
+            boolean compress = FIN && (opcode == 0x1 || opcode == 0x2) && compresses(payload.length);
+            if (!compress || deflate.serverNoContextTakeover) {
+                byte[] compressed = compress ? deflate.compress(payload) : null;
+                // Written once, to a heap buffer: the channel copies it to its own direct buffer anyway
+                return sendFrame(EncodedFrame.of(FIN, opcode, compressed != null ? compressed : payload, compressed != null, false, 1));
+            }
+            // Compressing moves the context the client inflates with along, so the frame cannot be dropped once
+            // compressed: the policy sees it before, by its uncompressed size
+            if (!admits(payload.length)) return false;
+            EncodedFrame f = EncodedFrame.of(true, opcode, deflate.compress(payload), true, false, 1);
+            queue(f);
+            if (logs(LogLevel.DEBUG)) logDebug("Frame queued: " + f);
+            return true;
+        }
+
+        boolean compresses(int length) {
+            return deflate != null && length >= compressionThreshold;
+        }
+
+        private boolean sendFrame(EncodedFrame f) {
+            if (!write(f)) return false;
+            if (logs(LogLevel.DEBUG)) logDebug("Frame queued: " + f);
+            return true;
+        }
+
+        /**
+         * Reads the request in blocking mode. The socket timeout is what is left until the handshake deadline,
+         * set again before each read: a client trickling bytes gets no more time than a silent one.
+         */
+        private HandshakeParser readHandshake() throws IOException {
+            HandshakeParser request = new HandshakeParser();
+            for (boolean done = false; !done; ) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(handshakeDeadline - System.nanoTime());
+                if (remaining <= 0) throw new SocketTimeoutException("Handshake timed out");
+                socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                int n = inputStream.read(inbound.array(), inbound.arrayOffset() + inbound.position(), inbound.remaining());
+                if (n < 0) throw new EOFException("Handshake not received");
+                inbound.position(inbound.position() + n);
+                inbound.flip();
+                done = request.parse(inbound);
+                inbound.compact();
+            }
+            return request;
+        }
+
+        /**
+         * Answers the request, negotiating its extensions.
+         *
+         * @return the id of the connection, or null if the request was refused
+         */
+        private String handShake(HandshakeParser request) {
+            if (request.status() == 101) {
+                deflate = compression ? PerMessageDeflate.negotiate(request.extensions(), compressionContextTakeover) : null;
+                String id = request.accept();
+                byte[] response = (
+                        "HTTP/1.1 101 Switching Protocols\r\n"
+                                + "Connection: Upgrade\r\n"
+                                + "Upgrade: websocket\r\n"
+                                + "Sec-WebSocket-Accept: " + id + "\r\n"
+                                + (deflate != null ? "Sec-WebSocket-Extensions: " + deflate.response() + "\r\n" : "")
+                                + "\r\n"
+                ).getBytes(StandardCharsets.UTF_8);
+                write(EncodedFrame.raw(response));
+                return id;
             }
             byte[] response = (
-                    "HTTP/1.1 400 Bad Request\r\n"
+                    (request.status() == 431 ? "HTTP/1.1 431 Request Header Fields Too Large\r\n" : "HTTP/1.1 400 Bad Request\r\n")
                             + "Date: " + ZonedDateTime.now().format(DateTimeFormatter.RFC_1123_DATE_TIME) + "\r\n\r\n"
             ).getBytes(StandardCharsets.UTF_8);
-            outputStream.write(response, 0, response.length);
+            write(EncodedFrame.raw(response));
             return null;
         }
 
         private class Frame {
             boolean FIN, MASK;
+            int RSV;
             byte opcode;
             int length;
-            byte bHead;
-            byte[] bLen, bMasks, bData;
-
-            Frame() {}
+            ByteBuffer data;
 
-            Frame(boolean f, byte op, byte[] d) {
+            Frame(boolean f, byte op, ByteBuffer d) {
                 FIN = f;
                 MASK = false;
                 opcode = op;
-                length = d.length;
-                bData = d;
-                bHead = (byte) (opcode + (FIN ? 0b1000_0000 : 0));
-                if (length <= 125) {
-                    bLen = new byte[1];
-                    bLen[0] = (byte) length;
-                } else if (length <= 65535) {
-                    bLen = new byte[3];
-                    bLen[0] = (byte) 126;
-                    bLen[1] = (byte) ((length >> 8) & (byte) 255);
-                    bLen[2] = (byte) (length & (byte) 255);
-                } else {
-                    bLen = new byte[9];
-                    bLen[0] = (byte) 127;
-                    for (int i = 0; i < 8; i++)
-                        bLen[8 - i] = (byte) ((length >> (i * 8)) & (byte) 255);
-                }
+                length = d.remaining();
+                data = d;
+            }
+
+            /**
+             * Takes over the payload, which the frame no longer releases.
+             */
+            ByteBuffer take() {
+                ByteBuffer d = data;
+                data = null;
+                return d;
+            }
+
+            void release() {
+                if (data != null) BufferPool.release(data);
+                data = null;
             }
 
             @Override
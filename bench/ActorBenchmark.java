@@ -0,0 +1,312 @@
+package parallel.actor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * JMH benchmarks of the actor runtime, every workload against the fork-join, fixed and virtual thread dispatchers.
+ * Operations are messages, or actors for skynet, so scores of different workloads compare. main runs them all with
+ * the gc profiler for the allocation rate per operation; the usual JMH options work through org.openjdk.jmh.Main:
+ *
+ *   java -cp <classes, jmh-core> parallel.actor.ActorBenchmark
+ *   java -cp <classes, jmh-core> org.openjdk.jmh.Main ActorBenchmark.pingPong -p dispatcher=fj -prof gc
+ *
+ * Like the tests need JUnit, this needs jmh-core and, when compiling, jmh-generator-annprocess on the annotation
+ * processor path to generate the benchmark list. Benchmarks are kept in bench/, apart from the main sources, which
+ * compile with the JDK alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActorBenchmark {
+    private static final int ROUND_TRIPS = 10_000;
+    private static final int FAN_OUT_MESSAGES = 100_000;
+    // 1 + 10 + ... + 10^5 actors for a tree of depth 5
+    private static final int SKYNET_DEPTH = 5, SKYNET_ACTORS = 111_111;
+    private static final int CONTENDED_BATCH = 1_000;
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ActorBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Dispatchers {
+        @Param({"fj", "fixed", "virtual"})
+        public String dispatcher;
+        Dispatcher instance;
+
+        @Setup
+        public void setUp() {
+            int processors = Runtime.getRuntime().availableProcessors();
+            switch (dispatcher) {
+                case "fj": instance = Dispatcher.forkJoin(processors); break;
+                case "fixed": instance = Dispatcher.fixed(processors); break;
+                case "virtual": instance = Dispatcher.virtualThreads(); break;
+                default: throw new IllegalArgumentException("Unknown dispatcher: " + dispatcher);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            instance.close();
+        }
+    }
+
+    /**
+     * Two actors passing a message back and forth, timed per round trip.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(ROUND_TRIPS)
+    public void pingPong(PingPong state) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        state.pinger.post("start", ROUND_TRIPS, done);
+        done.get();
+    }
+
+    /**
+     * One producer spreading messages over a worker per processor, all reporting to one collector.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FAN_OUT_MESSAGES)
+    public long fanOutFanIn(FanOutFanIn state) throws Exception {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        state.collector.ask("expect", (long) FAN_OUT_MESSAGES, done).get();
+        for (int i = 0; i < FAN_OUT_MESSAGES; i ++) state.workers[i % state.workers.length].work(i);
+        return done.get();
+    }
+
+    /**
+     * The skynet benchmark: every actor spawns ten children down to the depth, leaves report their number and
+     * parents sum them up. One operation is one actor created, run and summed.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SKYNET_ACTORS)
+    public long skynet(Dispatchers dispatchers) throws Exception {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        new Skynet(dispatchers.instance, null, result).post("spawn", 0L, SKYNET_DEPTH, dispatchers.instance);
+        return result.get();
+    }
+
+    /**
+     * A benchmark thread per processor posting to one actor through a proxy, like connections reporting to their
+     * shard. Each thread waits for the actor to catch up to within a batch of what was posted, so the mailbox stays
+     * short and the score is what the actor handles.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OperationsPerInvocation(CONTENDED_BATCH)
+    public void contended(Contended state) {
+        for (long i = 0; i < CONTENDED_BATCH; i ++) state.sink.hit(i);
+        state.awaitBacklog();
+    }
+
+    /**
+     * Like contended, posting by name rather than through a proxy.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OperationsPerInvocation(CONTENDED_BATCH)
+    public void contendedPost(Contended state) {
+        for (long i = 0; i < CONTENDED_BATCH; i ++) state.counter.post("hit", i);
+        state.awaitBacklog();
+    }
+
+    @State(Scope.Benchmark)
+    public static class PingPong {
+        public interface Ping {
+            void pong();
+        }
+
+        public interface Pong {
+            void ping();
+        }
+
+        static class Pinger extends Actor {
+            Pong pong;
+            int remaining;
+            CompletableFuture<Void> done;
+
+            Pinger(Dispatcher d) {
+                super(d);
+            }
+
+            void start(int roundTrips, CompletableFuture<Void> done) {
+                this.remaining = roundTrips;
+                this.done = done;
+                pong.ping();
+            }
+
+            void pong() {
+                if (-- remaining > 0) pong.ping();
+                else done.complete(null);
+            }
+        }
+
+        static class Ponger extends Actor {
+            Ping ping;
+
+            Ponger(Dispatcher d) {
+                super(d);
+            }
+
+            void ping() {
+                ping.pong();
+            }
+        }
+
+        Pinger pinger;
+
+        @Setup
+        public void setUp(Dispatchers dispatchers) {
+            pinger = new Pinger(dispatchers.instance);
+            Ponger ponger = new Ponger(dispatchers.instance);
+            pinger.pong = ponger.proxy(Pong.class);
+            ponger.ping = pinger.proxy(Ping.class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FanOutFanIn {
+        public interface Work {
+            void work(long value);
+        }
+
+        public interface Result {
+            void result(long value);
+        }
+
+        static class Worker extends Actor {
+            Result collector;
+
+            Worker(Dispatcher d) {
+                super(d);
+            }
+
+            void work(long value) {
+                collector.result(value * 31);
+            }
+        }
+
+        static class Collector extends Actor {
+            long remaining, sum;
+            CompletableFuture<Long> done;
+
+            Collector(Dispatcher d) {
+                super(d);
+            }
+
+            void expect(Long count, CompletableFuture<Long> done) {
+                this.remaining = count;
+                this.sum = 0;
+                this.done = done;
+            }
+
+            void result(long value) {
+                sum += value;
+                if (-- remaining == 0) done.complete(sum);
+            }
+        }
+
+        Collector collector;
+        Work[] workers;
+
+        @Setup
+        public void setUp(Dispatchers dispatchers) {
+            collector = new Collector(dispatchers.instance);
+            workers = new Work[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < workers.length; i ++) {
+                Worker w = new Worker(dispatchers.instance);
+                w.collector = collector.proxy(Result.class);
+                workers[i] = w.proxy(Work.class);
+            }
+        }
+    }
+
+    public interface Parent {
+        void sum(long value);
+    }
+
+    static class Skynet extends Actor {
+        private final Parent parent;
+        private final CompletableFuture<Long> result;
+        private int pending = 10;
+        private long sum;
+
+        Skynet(Dispatcher d, Parent parent, CompletableFuture<Long> result) {
+            super(d);
+            this.parent = parent;
+            this.result = result;
+        }
+
+        void spawn(long number, int depth, Dispatcher d) {
+            if (depth == 0) {
+                report(number);
+                return;
+            }
+            Parent self = proxy(Parent.class);
+            for (int i = 0; i < 10; i ++) new Skynet(d, self, null).post("spawn", number * 10 + i, depth - 1, d);
+        }
+
+        void sum(long value) {
+            sum += value;
+            if (-- pending == 0) report(sum);
+        }
+
+        private void report(long value) {
+            if (parent != null) parent.sum(value);
+            else result.complete(value);
+            exit();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Contended {
+        public interface Sink {
+            void hit(long value);
+        }
+
+        static class Counter extends Actor {
+            final AtomicLong count = new AtomicLong();
+
+            Counter(Dispatcher d) {
+                super(d);
+                setThroughput(64);
+            }
+
+            void hit(long value) {
+                count.lazySet(count.get() + 1);
+            }
+        }
+
+        final AtomicLong posted = new AtomicLong();
+        Counter counter;
+        Sink sink;
+
+        @Setup
+        public void setUp(Dispatchers dispatchers) {
+            counter = new Counter(dispatchers.instance);
+            sink = counter.proxy(Sink.class);
+        }
+
+        void awaitBacklog() {
+            long handled = posted.addAndGet(CONTENDED_BATCH) - CONTENDED_BATCH;
+            while (counter.count.get() < handled) Thread.onSpinWait();
+        }
+
+    }
+}
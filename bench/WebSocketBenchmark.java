@@ -0,0 +1,471 @@
+package net.websocket;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import parallel.actor.Histogram;
+
+/*
+ * Load generator for WebSocketServer over loopback. Masked client connections are driven by a few selector
+ * threads, so tens of thousands of them cost no thread each. Every scenario runs against a fresh server in this
+ * JVM, or against one started in another with the server command:
+ *
+ *   java net.websocket.WebSocketBenchmark [scenario ...] [-c 1000] [-size 64] [-w 2] [-t 10] [-loops 2] [-port p [-host h]]
+ *   java net.websocket.WebSocketBenchmark server [-port 9000] [-loops 2]
+ *
+ * Scenarios:
+ *   echo       every connection sends a text message and waits for its echo before sending the next
+ *   broadcast  one connection asks the server to send a message to all, -rate times a second
+ *   large      binary messages of -size bytes, 1 MiB by default, sent in -fragment byte frames and echoed whole
+ *   churn      connections open, get one echo and close, over and over
+ *
+ * Latency is from sending to receiving, in microseconds. Server CPU, in cores, and allocation per message are
+ * those of every thread but the clients', in this JVM only. Durations are in seconds.
+ */
+public class WebSocketBenchmark {
+    private static final String BROADCAST = "broadcast ";
+    private static final int MAX_MESSAGE = 64 << 20;
+    // Connections opening at once per client loop, within the server's accept backlog
+    private static final int CONNECTING = 256;
+
+    enum Scenario {
+        ECHO(1000, 64),
+        BROADCAST(1000, 64),
+        LARGE(32, 1 << 20),
+        CHURN(64, 64);
+
+        final int connections, size;
+
+        Scenario(int connections, int size) {
+            this.connections = connections;
+            this.size = size;
+        }
+    }
+
+    private static final class Options {
+        int connections = -1, size = -1, fragment = 64 << 10, rate = 20;
+        int loops = 2, clientLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        long warmupNanos = TimeUnit.SECONDS.toNanos(2), iterationNanos = TimeUnit.SECONDS.toNanos(10);
+        String host = "127.0.0.1";
+        int port = -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Scenario> scenarios = new ArrayList<>();
+        Options o = new Options();
+        boolean serve = false;
+        for (int i = 0; i < args.length; i ++) {
+            switch (args[i]) {
+                case "-c": o.connections = Integer.parseInt(args[++ i]); break;
+                case "-size": o.size = Integer.parseInt(args[++ i]); break;
+                case "-fragment": o.fragment = Integer.parseInt(args[++ i]); break;
+                case "-rate": o.rate = Integer.parseInt(args[++ i]); break;
+                case "-loops": o.loops = Integer.parseInt(args[++ i]); break;
+                case "-clients": o.clientLoops = Integer.parseInt(args[++ i]); break;
+                case "-w": o.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[++ i])); break;
+                case "-t": o.iterationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[++ i])); break;
+                case "-host": o.host = args[++ i]; break;
+                case "-port": o.port = Integer.parseInt(args[++ i]); break;
+                case "server": serve = true; break;
+                default: scenarios.add(Scenario.valueOf(args[i].toUpperCase(Locale.ROOT)));
+            }
+        }
+        if (serve) {
+            serve(o);
+            return;
+        }
+        if (scenarios.isEmpty()) scenarios.addAll(List.of(Scenario.values()));
+
+        System.out.printf("%-10s %6s %10s %11s %9s %9s %9s %9s %9s %7s %6s %10s%n", "Scenario", "Conns", "Connect/s",
+                "Msgs/s", "MB/s", "p50 us", "p99 us", "p99.9 us", "max us", "Errors", "Cores", "Srv B/msg");
+        for (Scenario s : scenarios) {
+            WebSocketServer server = o.port < 0 ? server(0, o.loops) : null;
+            try {
+                new Run(s, o, new InetSocketAddress(o.host, server != null ? server.getPort() : o.port), server != null).run();
+            } finally {
+                if (server != null) server.stop();
+            }
+        }
+    }
+
+    /**
+     * The server every scenario runs against: it echoes messages, and sends those starting with BROADCAST to all.
+     */
+    static WebSocketServer server(int port, int loops) throws IOException {
+        WebSocketServer server = new WebSocketServer(port, new PrintStream(OutputStream.nullOutputStream()), loops);
+        server.setLogLevel(WebSocketServer.LogLevel.WARN);
+        server.setOnText((id, text) -> {
+            if (text.startsWith(BROADCAST)) server.sendAll(text);
+            else server.send(id, text);
+            return 0;
+        });
+        server.setOnBinary((id, bin) -> {
+            server.send(id, bin);
+            return 0;
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Serves until killed, printing its CPU and allocation every five seconds.
+     */
+    private static void serve(Options o) throws Exception {
+        WebSocketServer server = server(Math.max(0, o.port), o.loops);
+        System.out.println("Serving on port " + server.getPort());
+        for (long cpu = processCpu(), allocated = allocatedBytes(), time = System.nanoTime(); ; ) {
+            Thread.sleep(5000);
+            long c = processCpu(), a = allocatedBytes(), t = System.nanoTime();
+            System.out.printf("cpu %.2f cores, allocation %.1f MB/s%n", (double) (c - cpu) / (t - time), (a - allocated) * 1e3 / (t - time));
+            cpu = c;
+            allocated = a;
+            time = t;
+        }
+    }
+
+    private static long processCpu() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getTotalThreadAllocatedBytes();
+    }
+
+    /*
+     * One scenario: opens the connections, warms up, measures, reports.
+     */
+    private static final class Run {
+        final Scenario scenario;
+        final Options o;
+        final InetSocketAddress address;
+        final boolean local;
+        final int connections, size;
+        final Histogram latency = new Histogram();
+        final LongAdder messages = new LongAdder(), bytes = new LongAdder(), cycles = new LongAdder(), errors = new LongAdder();
+        final AtomicInteger established = new AtomicInteger();
+        final ClientLoop[] loops;
+        volatile boolean stopped;
+        volatile Conn publisher;
+
+        Run(Scenario scenario, Options o, InetSocketAddress address, boolean local) throws IOException {
+            this.scenario = scenario;
+            this.o = o;
+            this.address = address;
+            this.local = local;
+            this.connections = o.connections > 0 ? o.connections : scenario.connections;
+            this.size = Math.max(24, o.size > 0 ? o.size : scenario.size);
+            loops = new ClientLoop[Math.min(o.clientLoops, connections)];
+            for (int i = 0; i < loops.length; i ++)
+                loops[i] = new ClientLoop(i, connections / loops.length + (i < connections % loops.length ? 1 : 0));
+        }
+
+        void run() throws Exception {
+            long start = System.nanoTime();
+            for (ClientLoop l : loops) l.thread.start();
+            while (established.get() + errors.sum() < connections && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(60))
+                Thread.sleep(10);
+            double connectRate = established.get() * 1e9 / (System.nanoTime() - start);
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(o.warmupNanos));
+            latency.reset();
+            messages.reset();
+            bytes.reset();
+            cycles.reset();
+            long[] clients = new long[loops.length];
+            for (int i = 0; i < loops.length; i ++) clients[i] = loops[i].thread.threadId();
+            long cpu0 = processCpu() - threadCpu(clients), allocated0 = allocatedBytes() - threadAllocated(clients);
+            long t0 = System.nanoTime();
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(o.iterationNanos));
+            long elapsed = System.nanoTime() - t0;
+            long cpu = processCpu() - threadCpu(clients) - cpu0, allocated = allocatedBytes() - threadAllocated(clients) - allocated0;
+            long n = messages.sum();
+            stopped = true;
+            for (ClientLoop l : loops) {
+                l.selector.wakeup();
+                l.thread.join(5000);
+            }
+            if (scenario == Scenario.CHURN) connectRate = cycles.sum() * 1e9 / elapsed;
+            System.out.printf("%-10s %6d %10.0f %11.0f %9.1f %9d %9d %9d %9d %7d %6s %10s%n", scenario.name().toLowerCase(Locale.ROOT),
+                    connections, connectRate, n * 1e9 / elapsed, bytes.sum() * 1e3 / elapsed, latency.percentile(50) / 1000,
+                    latency.percentile(99) / 1000, latency.percentile(99.9) / 1000, latency.max() / 1000, errors.sum(),
+                    local ? String.format("%.2f", (double) cpu / elapsed) : "-", local ? String.valueOf(allocated / Math.max(1, n)) : "-");
+        }
+
+        private long threadCpu(long[] ids) {
+            long sum = 0;
+            for (long id : ids) sum += Math.max(0, ManagementFactory.getThreadMXBean().getThreadCpuTime(id));
+            return sum;
+        }
+
+        private long threadAllocated(long[] ids) {
+            long sum = 0;
+            for (long a : ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(ids)) sum += Math.max(0, a);
+            return sum;
+        }
+
+        /**
+         * A message of the scenario's size starting with the time it is sent, as text of hexadecimal digits or a long.
+         */
+        ByteBuffer message(boolean text, String prefix, Conn c) {
+            long now = System.nanoTime();
+            if (!text) {
+                byte[] payload = new byte[size];
+                ByteBuffer.wrap(payload).putLong(now);
+                return c.frames((byte) 0x2, payload, o.fragment);
+            }
+            StringBuilder s = new StringBuilder(size).append(prefix).append(String.format("%016x", now));
+            while (s.length() < size) s.append('x');
+            return c.frames((byte) 0x1, s.toString().getBytes(StandardCharsets.US_ASCII), Integer.MAX_VALUE);
+        }
+
+        long sentAt(byte opcode, ByteBuffer payload) {
+            if (opcode == 0x2) return payload.getLong(payload.position());
+            int from = payload.position() + (scenario == Scenario.BROADCAST ? BROADCAST.length() : 0);
+            byte[] hex = new byte[16];
+            payload.get(from, hex);
+            return Long.parseUnsignedLong(new String(hex, StandardCharsets.US_ASCII), 16);
+        }
+
+        /*
+         * A selector thread opening its share of the connections and driving them.
+         */
+        private final class ClientLoop {
+            final Selector selector = Selector.open();
+            final Thread thread;
+            final int index;
+            int toOpen, connecting;
+            long nextBroadcast;
+
+            ClientLoop(int index, int share) throws IOException {
+                this.index = index;
+                this.toOpen = share;
+                thread = new Thread(this::run, "websocket-client-" + index);
+                thread.setDaemon(true);
+            }
+
+            private void run() {
+                while (!stopped) {
+                    try {
+                        while (toOpen > 0 && connecting < CONNECTING) {
+                            toOpen --;
+                            open();
+                        }
+                        // A millisecond at most, for broadcasts to go out on time
+                        selector.select(this::process, 1);
+                        Conn p = publisher;
+                        if (p != null && p.loop == this && System.nanoTime() - nextBroadcast >= 0) {
+                            nextBroadcast = System.nanoTime() + 1_000_000_000L / o.rate;
+                            p.send(message(true, BROADCAST, p));
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+                for (SelectionKey k : selector.keys()) ((Conn) k.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Done anyway
+                }
+            }
+
+            private void open() throws IOException {
+                Conn c = new Conn(this);
+                connecting ++;
+                c.channel.configureBlocking(false);
+                c.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+                c.started = System.nanoTime();
+                if (c.channel.connect(address)) c.connected();
+            }
+
+            private void process(SelectionKey key) {
+                Conn c = (Conn) key.attachment();
+                try {
+                    if (key.isConnectable() && c.channel.finishConnect()) c.connected();
+                    if (key.isValid() && key.isWritable()) c.flush();
+                    if (key.isValid() && key.isReadable()) c.read();
+                } catch (IOException | CancelledKeyException e) {
+                    errors.increment();
+                    if (!c.open) connecting --;
+                    c.close();
+                    // Keep the scenario's number of connections
+                    if (!stopped && scenario == Scenario.CHURN) toOpen ++;
+                }
+            }
+        }
+
+        /*
+         * A client connection, masking what it sends and decoding what it receives with the server's own decoder.
+         */
+        private final class Conn {
+            final ClientLoop loop;
+            final SocketChannel channel = SocketChannel.open();
+            final ByteBuffer in = ByteBuffer.allocate(64 << 10);
+            final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+            final FrameDecoder decoder = new FrameDecoder(MAX_MESSAGE, false);
+            SelectionKey key;
+            boolean open;
+            long started;
+
+            Conn(ClientLoop loop) throws IOException {
+                this.loop = loop;
+            }
+
+            void connected() throws IOException {
+                key.interestOps(SelectionKey.OP_READ);
+                byte[] nonce = new byte[16];
+                ThreadLocalRandom.current().nextBytes(nonce);
+                send(ByteBuffer.wrap(("GET / HTTP/1.1\r\nHost: " + address.getHostString() + "\r\nUpgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\nSec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce)
+                        + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+            }
+
+            void read() throws IOException {
+                if (channel.read(in) < 0) throw new EOFException("Closed by the server");
+                in.flip();
+                if (!open && !upgrade()) {
+                    in.compact();
+                    return;
+                }
+                for (ByteBuffer payload; key.isValid() && (payload = decoder.decode(in)) != null; ) {
+                    try {
+                        received(decoder.opcode(), payload);
+                    } finally {
+                        BufferPool.release(payload);
+                    }
+                }
+                in.compact();
+            }
+
+            private boolean upgrade() throws IOException {
+                for (int i = in.position() + 3; i < in.limit(); i ++) {
+                    if (in.get(i) != '\n' || in.get(i - 1) != '\r' || in.get(i - 2) != '\n' || in.get(i - 3) != '\r') continue;
+                    byte[] status = new byte[12];
+                    in.get(in.position(), status);
+                    if (!new String(status, StandardCharsets.US_ASCII).equals("HTTP/1.1 101")) throw new IOException("Upgrade refused");
+                    in.position(i + 1);
+                    open = true;
+                    loop.connecting --;
+                    established.incrementAndGet();
+                    switch (scenario) {
+                        case ECHO:
+                        case CHURN:
+                            send(message(true, "", this));
+                            break;
+                        case LARGE:
+                            send(message(false, "", this));
+                            break;
+                        case BROADCAST:
+                            if (publisher == null) publisher = this;
+                            break;
+                    }
+                    return true;
+                }
+                if (!in.hasRemaining() && in.limit() == in.capacity()) throw new IOException("Upgrade response too long");
+                return false;
+            }
+
+            private void received(byte opcode, ByteBuffer payload) throws IOException {
+                switch (opcode) {
+                    case 0x9:
+                        send(frames((byte) 0xa, bytes(payload), Integer.MAX_VALUE));
+                        return;
+                    case 0x8:
+                        throw new EOFException("Closed by the server");
+                    case 0x1:
+                    case 0x2:
+                        break;
+                    default:
+                        return;
+                }
+                long now = System.nanoTime();
+                latency.record(now - sentAt(opcode, payload));
+                messages.increment();
+                bytes.add(payload.remaining());
+                switch (scenario) {
+                    case ECHO:
+                        send(message(true, "", this));
+                        break;
+                    case LARGE:
+                        send(message(false, "", this));
+                        break;
+                    case CHURN:
+                        cycles.increment();
+                        close();
+                        if (!stopped) loop.toOpen ++;
+                        break;
+                    default:
+                }
+            }
+
+            /**
+             * The message as masked frames of the given length at most, the first with the opcode.
+             */
+            ByteBuffer frames(byte opcode, byte[] payload, int fragment) {
+                int n = Math.max(1, (payload.length + fragment - 1) / fragment);
+                ByteBuffer b = ByteBuffer.allocate(payload.length + n * 14);
+                for (int i = 0, from = 0; i < n; i ++) {
+                    int length = Math.min(fragment, payload.length - from);
+                    b.put((byte) ((i == n - 1 ? 0x80 : 0) | (i == 0 ? opcode : 0)));
+                    if (length <= 125) {
+                        b.put((byte) (0x80 | length));
+                    } else if (length <= 65535) {
+                        b.put((byte) (0x80 | 126));
+                        b.putShort((short) length);
+                    } else {
+                        b.put((byte) (0x80 | 127));
+                        b.putLong(length);
+                    }
+                    int mask = ThreadLocalRandom.current().nextInt();
+                    b.putInt(mask);
+                    int start = b.position();
+                    b.put(payload, from, length);
+                    // Masking is the same xor as unmasking
+                    FrameDecoder.unmask(b, start, start + length, mask, 0);
+                    from += length;
+                }
+                return b.flip();
+            }
+
+            void send(ByteBuffer b) throws IOException {
+                if (out.isEmpty()) channel.write(b);
+                if (!b.hasRemaining()) return;
+                out.add(b);
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+            }
+
+            void flush() throws IOException {
+                for (ByteBuffer b; (b = out.peek()) != null; out.poll()) {
+                    channel.write(b);
+                    if (b.hasRemaining()) return;
+                }
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            }
+
+            void close() {
+                open = false;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+
+            private byte[] bytes(ByteBuffer b) {
+                byte[] data = new byte[b.remaining()];
+                b.get(b.position(), data);
+                return data;
+            }
+        }
+    }
+}
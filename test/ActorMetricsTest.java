@@ -0,0 +1,83 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+
+class ActorMetricsTest {
+    static class Probe extends Actor {
+        Probe(Dispatcher dispatcher) {
+            super(dispatcher);
+        }
+
+        int echo(int n) {
+            return n;
+        }
+
+        void quit() {
+            exit();
+        }
+    }
+
+    /**
+     * Metrics are a constant read once per JVM, so when this one runs without them the checks run in another.
+     */
+    @Test
+    void mxBeansLiveAsLongAsTheirActorAndDispatcher() throws Exception {
+        if (ActorMetrics.ENABLED) {
+            checkRegistration();
+            return;
+        }
+        Process p = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-Dparallel.actor.metrics=true", "-cp", System.getProperty("java.class.path"), ActorMetricsTest.class.getName())
+                .redirectErrorStream(true).start();
+        assertTrue(p.waitFor(30, TimeUnit.SECONDS), "Metrics check still running");
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(0, p.exitValue(), output);
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkRegistration();
+    }
+
+    private static void checkRegistration() throws Exception {
+        assertTrue(ActorMetrics.ENABLED);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName actors = new ObjectName("parallel.actor:type=Actor,name=" + ObjectName.quote("Probe") + ",*");
+        ObjectName dispatchers = new ObjectName("parallel.actor:type=Dispatcher,name=" + ObjectName.quote("test-metrics") + ",*");
+        assertTrue(server.queryNames(actors, null).isEmpty());
+        Dispatcher dispatcher = Dispatcher.pinned("test-metrics");
+        Probe probe = new Probe(dispatcher);
+        Set<ObjectName> names = server.queryNames(actors, null);
+        assertEquals(1, names.size());
+        ObjectName name = names.iterator().next();
+        assertEquals(Probe.class.getName(), server.getAttribute(name, "ActorClass"));
+        for (int i = 0; i < 10; i ++) assertEquals(i, probe.<Integer>ask("echo", i).get(5, TimeUnit.SECONDS));
+        // Counted once the reply is out
+        await(() -> server.getAttribute(name, "MessagesHandled").equals(10L), "Messages not counted");
+        assertEquals(1, server.queryNames(dispatchers, null).size());
+        probe.post("quit");
+        await(() -> !server.isRegistered(name), "Actor MXBean still registered");
+        dispatcher.close();
+        assertTrue(server.queryNames(dispatchers, null).isEmpty());
+    }
+
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static void await(Condition condition, String message) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            assertTrue(System.nanoTime() - deadline < 0, message);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+class ActorTest {
+    private static final Dispatcher dispatcher = Dispatcher.fixed(4);
+
+    public interface Adder {
+        void add(int n);
+    }
+
+    public interface Offers {
+        boolean add(int n);
+    }
+
+    public interface Unknown {
+        void missing(int n);
+    }
+
+    /*
+     * Every kind of parameter a proxy passes, inline for three or fewer and in an array beyond.
+     */
+    public interface Arguments {
+        void wide(long a, double b, int c);
+        void small(float a, boolean b, char c);
+        void narrow(byte a, short b, long c);
+        void spread(long a, double b, float c, boolean d, char e, byte f, short g, String h);
+        CompletableFuture<String> join(long a, double b, String c);
+        CompletionStage<String> join(long a, double b, float c, boolean d, char e, byte f, short g, String h);
+    }
+
+    static class Recorder extends Actor {
+        final List<List<Object>> calls = new ArrayList<>();
+
+        Recorder() {
+            super(dispatcher);
+        }
+
+        void wide(long a, double b, int c) {
+            calls.add(List.of(a, b, c));
+        }
+
+        void small(float a, boolean b, char c) {
+            calls.add(List.of(a, b, c));
+        }
+
+        void narrow(byte a, short b, long c) {
+            calls.add(List.of(a, b, c));
+        }
+
+        void spread(long a, double b, float c, boolean d, char e, byte f, short g, String h) {
+            calls.add(Arrays.asList(a, b, c, d, e, f, g, h));
+        }
+
+        String join(long a, double b, String c) {
+            return a + " " + b + " " + c;
+        }
+
+        CompletableFuture<String> join(long a, double b, float c, boolean d, char e, byte f, short g, String h) {
+            return CompletableFuture.completedFuture(List.of(a, b, c, d, e, f, g, h).toString());
+        }
+
+        List<List<Object>> calls() {
+            return List.copyOf(calls);
+        }
+    }
+
+    static class Subject extends Actor {
+        final AtomicInteger undelivered = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        int value;
+
+        Subject() {
+            super(dispatcher);
+        }
+
+        Subject(Mailbox mailbox) {
+            super(dispatcher, mailbox);
+        }
+
+        void slow() throws InterruptedException {
+            Thread.sleep(100);
+        }
+
+        void hold(CountDownLatch release) throws InterruptedException {
+            started.countDown();
+            release.await();
+        }
+
+        void quit() {
+            exit();
+        }
+
+        void add(int n) {
+            value += n;
+        }
+
+        int val() {
+            return value;
+        }
+
+        @Override
+        protected void onUndelivered(Object[] arguments) {
+            undelivered.incrementAndGet();
+        }
+    }
+
+    static class Overloads extends Actor {
+        Overloads() {
+            super(dispatcher);
+        }
+
+        String pick(Object o) {
+            return "Object";
+        }
+
+        String pick(CharSequence s) {
+            return "CharSequence";
+        }
+
+        String pick(String s) {
+            return "String";
+        }
+
+        String pick(long n) {
+            return "long";
+        }
+
+        String pick(double n) {
+            return "double";
+        }
+
+        String amb(Object a, String b) {
+            return "Object, String";
+        }
+
+        String amb(String a, Object b) {
+            return "String, Object";
+        }
+
+        long widened(long a, double b, int c) {
+            return a + (long) b + c;
+        }
+    }
+
+    static class Turns extends Actor {
+        final String name;
+        final List<String> log;
+
+        Turns(Dispatcher dispatcher, String name, List<String> log) {
+            super(dispatcher);
+            this.name = name;
+            this.log = log;
+        }
+
+        void take(long millis) throws InterruptedException {
+            if (millis > 0) Thread.sleep(millis);
+            log.add(name);
+        }
+
+        void hold(CountDownLatch started, CountDownLatch release) throws InterruptedException {
+            started.countDown();
+            release.await();
+        }
+    }
+
+    @AfterAll
+    static void shutdown() {
+        dispatcher.close();
+    }
+
+    private static Throwable failure(CompletableFuture<?> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        return fail("Completed normally");
+    }
+
+    @Test
+    void handlesInOrder() throws Exception {
+        Subject s = new Subject();
+        for (int i = 1; i <= 100; i ++) s.post("add", i);
+        assertEquals(5050, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void asksQueuedBehindExitFail() throws Exception {
+        Subject s = new Subject();
+        s.post("slow");
+        s.post("quit");
+        CompletableFuture<Integer> val = s.ask("val");
+        assertInstanceOf(IllegalStateException.class, failure(val));
+        assertEquals(1, s.undelivered.get());
+        assertFalse(s.post("add", 1));
+        assertInstanceOf(IllegalStateException.class, failure(s.ask("val")));
+    }
+
+    @Test
+    void exitOutsideOfHandlerRejectsQueued() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject();
+        s.post("hold", release);
+        s.started.await();
+        CompletableFuture<Integer> val = s.ask("val");
+        s.exit();
+        release.countDown();
+        assertInstanceOf(IllegalStateException.class, failure(val));
+
+        Subject idle = new Subject();
+        idle.exit();
+        assertFalse(idle.post("add", 1));
+        assertInstanceOf(IllegalStateException.class, failure(idle.ask("val")));
+    }
+
+    @Test
+    void exitFromAnotherThreadBetweenBatchesRejectsQueued() throws Exception {
+        ExecutorService exiter = Executors.newSingleThreadExecutor();
+        try {
+            for (int round = 0; round < 5000; round ++) {
+                Subject s = new Subject();
+                // A batch per message, so the exit may land between the end of one and the actor going back to waiting
+                s.setThroughput(1);
+                for (int i = 0; i < 100; i ++) s.post("add", 1);
+                CompletableFuture<Integer> val = s.ask("val");
+                exiter.submit(s::exit).get(5, TimeUnit.SECONDS);
+                try {
+                    assertEquals(100, val.get(5, TimeUnit.SECONDS));
+                } catch (ExecutionException e) {
+                    assertInstanceOf(IllegalStateException.class, e.getCause());
+                }
+                assertFalse(s.post("add", 1));
+            }
+        } finally {
+            exiter.shutdownNow();
+        }
+    }
+
+    @Test
+    void asksRacingWithExitComplete() throws Exception {
+        ExecutorService askers = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 200; round ++) {
+                Subject s = new Subject();
+                List<Future<CompletableFuture<Integer>>> asks = new ArrayList<>();
+                for (int t = 0; t < 4; t ++) asks.add(askers.submit(() -> s.<Integer>ask("val")));
+                s.post("quit");
+                for (int t = 0; t < 4; t ++) asks.add(askers.submit(() -> s.<Integer>ask("val")));
+                for (Future<CompletableFuture<Integer>> a : asks) {
+                    CompletableFuture<Integer> f = a.get(5, TimeUnit.SECONDS);
+                    try {
+                        f.get(5, TimeUnit.SECONDS);
+                    } catch (ExecutionException e) {
+                        assertInstanceOf(IllegalStateException.class, e.getCause());
+                    }
+                }
+            }
+        } finally {
+            askers.shutdownNow();
+        }
+    }
+
+    @Test
+    void dropNewestDiscardsThePost() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(2, Mailbox.Overflow.DROP_NEWEST));
+        s.post("hold", release);
+        s.started.await();
+        assertTrue(s.post("add", 1));
+        assertTrue(s.post("add", 2));
+        assertFalse(s.post("add", 4));
+        release.countDown();
+        while (s.getMessageCount() > 0) Thread.onSpinWait();
+        assertEquals(3, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dropOldestFailsItsAsk() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(2, Mailbox.Overflow.DROP_OLDEST));
+        s.post("hold", release);
+        s.started.await();
+        CompletableFuture<Integer> oldest = s.ask("val");
+        s.post("add", 1);
+        s.post("add", 2);
+        release.countDown();
+        assertInstanceOf(IllegalStateException.class, failure(oldest));
+        assertEquals(3, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+        assertEquals(1, s.undelivered.get());
+    }
+
+    @Test
+    void dropOldestAccountsForEveryPost() throws Exception {
+        Mailbox mailbox = Mailbox.bounded(4, Mailbox.Overflow.DROP_OLDEST);
+        Subject s = new Subject(mailbox);
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> posts = new ArrayList<>();
+            for (int p = 0; p < 4; p ++) posts.add(producers.submit(() -> {
+                for (int i = 0; i < 10_000; i ++) s.post("add", 1);
+            }));
+            for (Future<?> f : posts) f.get(10, TimeUnit.SECONDS);
+        } finally {
+            producers.shutdownNow();
+        }
+        while (s.getMessageCount() > 0) Thread.onSpinWait();
+        int value = s.<Integer>ask("val").get(5, TimeUnit.SECONDS);
+        assertEquals(mailbox.dropped(), s.undelivered.get());
+        assertEquals(40_000, value + s.undelivered.get());
+    }
+
+    @Test
+    void failThrowsFromThePost() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(1, Mailbox.Overflow.FAIL));
+        s.post("hold", release);
+        s.started.await();
+        s.post("add", 1);
+        assertThrows(IllegalStateException.class, () -> s.post("add", 2));
+        release.countDown();
+        while (s.getMessageCount() > 0) Thread.onSpinWait();
+        assertEquals(1, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void blockWaitsForRoomAndIsReleasedByExit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(1, Mailbox.Overflow.BLOCK));
+        s.post("hold", release);
+        s.started.await();
+        s.post("add", 1);
+        CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(() -> s.post("add", 2));
+        Thread.sleep(50);
+        assertFalse(blocked.isDone());
+        release.countDown();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertEquals(3, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+
+        CountDownLatch never = new CountDownLatch(1);
+        Subject full = new Subject(Mailbox.bounded(1, Mailbox.Overflow.BLOCK));
+        full.post("hold", never);
+        full.started.await();
+        full.post("add", 1);
+        CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> full.post("add", 2));
+        Thread.sleep(50);
+        full.exit();
+        never.countDown();
+        assertFalse(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(1, full.undelivered.get());
+    }
+
+    @Test
+    void unboundedProxyNeverBlocks() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(1, Mailbox.Overflow.BLOCK));
+        s.post("hold", release);
+        s.started.await();
+        s.post("add", 1);
+        Adder internal = s.unboundedProxy(Adder.class);
+        for (int i = 0; i < 10; i ++) internal.add(1);
+        assertEquals(11, s.getMessageCount());
+        release.countDown();
+        assertEquals(11, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void askTimesOut() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject();
+        s.post("hold", release);
+        CompletableFuture<Integer> val = s.ask(Duration.ofMillis(50), "val");
+        assertInstanceOf(TimeoutException.class, failure(val));
+        release.countDown();
+    }
+
+    @Test
+    void proxiesPassEveryPrimitiveType() throws Exception {
+        Recorder r = new Recorder();
+        Arguments a = r.proxy(Arguments.class);
+        // Two-slot locals before and after others, and the extremes of each type
+        a.wide(Long.MIN_VALUE, -0.0, Integer.MAX_VALUE);
+        a.wide(-1, Double.NaN, -1);
+        a.small(Float.MIN_VALUE, true, Character.MAX_VALUE);
+        a.small(-1.5f, false, 'a');
+        a.narrow(Byte.MIN_VALUE, Short.MIN_VALUE, Long.MAX_VALUE);
+        a.narrow((byte) -1, (short) -1, -1);
+        a.spread(Long.MIN_VALUE, Double.MAX_VALUE, -0.0f, true, '\u00e9', Byte.MAX_VALUE, Short.MAX_VALUE, "s");
+        a.spread(-1, -1.5, Float.NaN, false, '\0', (byte) -1, (short) -1, null);
+        assertEquals(List.of(
+                List.of(Long.MIN_VALUE, -0.0, Integer.MAX_VALUE),
+                List.of(-1L, Double.NaN, -1),
+                List.of(Float.MIN_VALUE, true, Character.MAX_VALUE),
+                List.of(-1.5f, false, 'a'),
+                List.of(Byte.MIN_VALUE, Short.MIN_VALUE, Long.MAX_VALUE),
+                List.of((byte) -1, (short) -1, -1L),
+                List.of(Long.MIN_VALUE, Double.MAX_VALUE, -0.0f, true, '\u00e9', Byte.MAX_VALUE, Short.MAX_VALUE, "s"),
+                Arrays.asList(-1L, -1.5, Float.NaN, false, '\0', (byte) -1, (short) -1, null)), r.<List<List<Object>>>ask("calls").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void proxyFuturesAsk() throws Exception {
+        Recorder r = new Recorder();
+        Arguments a = r.proxy(Arguments.class);
+        assertEquals("-2 0.5 x", a.join(-2, 0.5, "x").get(5, TimeUnit.SECONDS));
+        // A CompletionStage from the handler is flattened
+        assertEquals("[1, 2.0, 3.0, true, c, 4, 5, y]",
+                a.join(1, 2.0, 3.0f, true, 'c', (byte) 4, (short) 5, "y").toCompletableFuture().get(5, TimeUnit.SECONDS));
+        r.exit();
+        assertInstanceOf(IllegalStateException.class, failure(a.join(1, 1, "z")));
+    }
+
+    @Test
+    void proxyPostsReturnWhetherTheMessageWasQueued() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Subject s = new Subject(Mailbox.bounded(1, Mailbox.Overflow.DROP_NEWEST));
+        Offers offers = s.proxy(Offers.class);
+        s.post("hold", release);
+        s.started.await();
+        assertTrue(offers.add(1));
+        assertFalse(offers.add(2));
+        release.countDown();
+        while (s.getMessageCount() > 0) Thread.onSpinWait();
+        assertEquals(1, s.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+        s.exit();
+        assertFalse(offers.add(4));
+    }
+
+    @Test
+    void proxyRejectsMethodsWithoutHandler() {
+        Subject s = new Subject();
+        assertThrows(IllegalArgumentException.class, () -> s.proxy(Unknown.class));
+        // The parameter types must match exactly
+        assertThrows(IllegalArgumentException.class, () -> new Recorder().proxy(Adder.class));
+    }
+
+    private static String pick(Overloads o, Object... arguments) throws Exception {
+        return o.<String>ask("pick", arguments).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void postsChooseTheMostSpecificOverload() throws Exception {
+        Overloads o = new Overloads();
+        assertEquals("String", pick(o, "s"));
+        assertEquals("CharSequence", pick(o, new StringBuilder()));
+        assertEquals("Object", pick(o, List.of()));
+        assertEquals("String", pick(o, new Object[] {null}));
+        // An int widens to long as well as to double, and long to double
+        assertEquals("long", pick(o, 1));
+        assertEquals("long", pick(o, (byte) 1));
+        assertEquals("long", pick(o, 'c'));
+        assertEquals("double", pick(o, 1.5f));
+        assertEquals("double", pick(o, 1.5));
+        assertEquals("Object", pick(o, true));
+        assertEquals("Object, String", o.<String>ask("amb", 1, "b").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void boxedArgumentsWidenToPrimitiveParameters() throws Exception {
+        Overloads o = new Overloads();
+        assertEquals(6L, o.<Long>ask("widened", (byte) 1, 2, (short) 3).get(5, TimeUnit.SECONDS));
+        assertEquals(6L, o.<Long>ask("widened", 1L, 2.5f, 'a' - 'a' + 3).get(5, TimeUnit.SECONDS));
+        // Narrowing and a null for a primitive do not apply
+        assertThrows(IllegalArgumentException.class, () -> o.post("widened", 1.0, 2, 3));
+        assertThrows(IllegalArgumentException.class, () -> o.post("widened", 1, 2, 3L));
+        assertThrows(IllegalArgumentException.class, () -> o.post("widened", 1, 2, null));
+    }
+
+    @Test
+    void postsFailFastOnUnknownOrAmbiguousHandlers() {
+        Overloads o = new Overloads();
+        assertThrows(IllegalArgumentException.class, () -> o.post("nothing"));
+        assertThrows(IllegalArgumentException.class, () -> o.ask("nothing", 1));
+        assertThrows(IllegalArgumentException.class, () -> o.post("pick"));
+        assertThrows(IllegalArgumentException.class, () -> o.post("pick", 1, 2));
+        assertThrows(IllegalArgumentException.class, () -> o.post("amb", "a", "b"));
+        assertThrows(IllegalArgumentException.class, () -> o.ask("amb", "a", "b"));
+    }
+
+    /**
+     * Queues messages for two actors while the only thread of a dispatcher is held, then releases it.
+     */
+    private static List<String> interleave(int throughput, Duration budget, int messages, long millis) throws Exception {
+        List<String> log = new CopyOnWriteArrayList<>();
+        try (Dispatcher single = Dispatcher.fixed(1)) {
+            Turns gate = new Turns(single, "gate", log), busy = new Turns(single, "busy", log), other = new Turns(single, "other", log);
+            busy.setThroughput(throughput, budget);
+            CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+            gate.post("hold", started, release);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < messages - 1; i ++) busy.post("take", millis);
+            CompletableFuture<Object> last = busy.ask("take", millis);
+            CompletableFuture<Object> done = other.ask("take", 0L);
+            release.countDown();
+            last.get(5, TimeUnit.SECONDS);
+            done.get(5, TimeUnit.SECONDS);
+        }
+        return log;
+    }
+
+    @Test
+    void busyActorYieldsAfterItsThroughput() throws Exception {
+        List<String> log = interleave(4, Duration.ZERO, 10, 0);
+        assertEquals(List.of("busy", "busy", "busy", "busy", "other", "busy", "busy", "busy", "busy", "busy", "busy"), log);
+    }
+
+    @Test
+    void timeBudgetCutsABatchShort() throws Exception {
+        // A batch of 1000 would take a second, the budget lets through a few
+        List<String> log = interleave(1000, Duration.ofMillis(20), 20, 5);
+        int other = log.indexOf("other");
+        assertTrue(other > 0 && other < 10, "Other ran after " + other + " messages");
+        assertEquals(21, log.size());
+    }
+
+    @Test
+    void rejectsNonPositiveThroughput() {
+        Subject s = new Subject();
+        assertThrows(IllegalArgumentException.class, () -> s.setThroughput(0));
+        assertThrows(IllegalArgumentException.class, () -> s.setThroughput(-1));
+        assertThrows(IllegalArgumentException.class, () -> s.setThroughput(1, Duration.ofMillis(-1)));
+        s.setThroughput(1, Duration.ZERO);
+    }
+}
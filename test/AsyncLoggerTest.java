@@ -0,0 +1,170 @@
+package net.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.websocket.WebSocketServer.LogLevel;
+import org.junit.jupiter.api.Test;
+
+class AsyncLoggerTest {
+    static class Output extends ByteArrayOutputStream {
+        volatile boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        String text() {
+            synchronized (this) {
+                return toString(StandardCharsets.UTF_8);
+            }
+        }
+
+        long lines(String message) {
+            return text().lines().filter(l -> l.endsWith(message)).count();
+        }
+    }
+
+    private static void assertWriterStops(String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals(name))) {
+            assertTrue(System.nanoTime() - deadline < 0, "Writer thread still running");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void filteredLevelsNeverBuildTheLine() throws Exception {
+        Output out = new Output();
+        AsyncLogger logger = new AsyncLogger(out, "test-log-filtered");
+        AtomicInteger traces = new AtomicInteger();
+        Throwable error = new Throwable() {
+            @Override
+            public void printStackTrace(PrintWriter s) {
+                traces.incrementAndGet();
+            }
+        };
+        logger.setLevel(LogLevel.WARN);
+        assertFalse(logger.enabled(LogLevel.INFO));
+        assertTrue(logger.enabled(LogLevel.ERROR));
+        // More than the ring holds, which would report drops had they taken slots
+        for (int i = 0; i < 50_000; i ++) {
+            logger.log(LogLevel.DEBUG, "debug", error);
+            logger.log(LogLevel.INFO, "info", error);
+        }
+        logger.log(LogLevel.WARN, "warn", null);
+        logger.log(LogLevel.ERROR, "error", error);
+        logger.close();
+        assertEquals(1, traces.get());
+        String text = out.text();
+        assertFalse(text.contains("debug") || text.contains("info") || text.contains("dropped"), text);
+        assertEquals(1, out.lines("] WARN warn"));
+        assertEquals(1, out.lines("] ERROR error"));
+    }
+
+    @Test
+    void fullRingCountsAndReportsDrops() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1), release = new CountDownLatch(1);
+        Output out = new Output() {
+            @Override
+            public void write(byte[] b) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.write(b);
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(out, "test-log-full");
+        logger.log(LogLevel.INFO, "first", null);
+        // The writer took the line and is stuck writing it, the ring is empty
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        int capacity = 1 << 14;
+        for (int i = 0; i < capacity + 100; i ++) logger.log(LogLevel.INFO, "line", null);
+        release.countDown();
+        logger.close();
+        assertEquals(1, out.lines("] INFO first"));
+        assertEquals(capacity, out.lines("] INFO line"));
+        assertEquals(1, out.lines("] WARN 100 log lines dropped"));
+    }
+
+    @Test
+    void flushAndCloseWriteEverything() throws Exception {
+        Output out = new Output(), file = new Output();
+        AsyncLogger logger = new AsyncLogger(out, "test-log-flush");
+        int threads = 4, lines = 2000;
+        List<Thread> loggers = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            int id = t;
+            loggers.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < lines; i ++) logger.log(LogLevel.INFO, "thread " + id + " line " + i, null);
+            }));
+        }
+        for (Thread t : loggers) t.join();
+        logger.flush();
+        String text = out.text();
+        for (int t = 0; t < threads; t ++) {
+            // In order per thread
+            Matcher m = Pattern.compile("thread " + t + " line (\\d+)\n").matcher(text);
+            int next = 0;
+            while (m.find()) assertEquals(next ++, Integer.parseInt(m.group(1)));
+            assertEquals(lines, next);
+        }
+        logger.setFile(file);
+        for (int i = 0; i < 1000; i ++) logger.log(LogLevel.INFO, "closing " + i, null);
+        logger.close();
+        assertTrue(file.closed);
+        for (int i = 0; i < 1000; i ++) assertEquals(1, file.lines("] INFO closing " + i));
+        logger.log(LogLevel.ERROR, "after close", null);
+        assertWriterStops("test-log-flush");
+        assertFalse(file.text().contains("after close"));
+    }
+
+    @Test
+    void setFileSwitchesOutput() throws Exception {
+        Output out = new Output(), first = new Output(), second = new Output();
+        AsyncLogger logger = new AsyncLogger(out, "test-log-file");
+        logger.log(LogLevel.INFO, "to out", null);
+        logger.flush();
+        logger.setFile(first);
+        // Lines logged after setFile returned go to the new file, even if the writer had not switched yet
+        logger.log(LogLevel.INFO, "to first", null);
+        logger.flush();
+        logger.setFile(second);
+        logger.log(LogLevel.INFO, "to second", null);
+        logger.close();
+        assertEquals(1, out.lines("] INFO to out"));
+        assertFalse(out.text().contains("to first"));
+        assertEquals(1, first.lines("] INFO to first"));
+        assertEquals(1, second.lines("] INFO to second"));
+        assertFalse(first.text().contains("to second"));
+        // The stream it was created with belongs to the caller, the files to the logger
+        assertFalse(out.closed);
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+    }
+
+    @Test
+    void setFileClosesAFileReplacedBeforeUse() throws Exception {
+        Output out = new Output(), unused = new Output(), file = new Output();
+        AsyncLogger logger = new AsyncLogger(out, "test-log-replaced");
+        for (int i = 0; i < 100; i ++) {
+            logger.setFile(unused);
+            logger.setFile(file);
+        }
+        logger.log(LogLevel.INFO, "to file", null);
+        logger.close();
+        assertTrue(unused.closed);
+        assertEquals(1, file.lines("] INFO to file"));
+    }
+}
@@ -0,0 +1,132 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+class DispatcherTest {
+    static class Counter extends Actor {
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        int value;
+
+        Counter(Dispatcher dispatcher) {
+            super(dispatcher);
+        }
+
+        void add(int n) {
+            threads.add(Thread.currentThread().getName());
+            value += n;
+        }
+
+        int val() {
+            return value;
+        }
+
+        void forward(Counter to, int n) {
+            value += n;
+            to.post("add", n);
+        }
+
+        void block(CountDownLatch started, CompletableFuture<Boolean> interrupted) {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+                interrupted.complete(false);
+            } catch (InterruptedException e) {
+                interrupted.complete(true);
+            }
+        }
+    }
+
+    private static void runsActors(Supplier<Dispatcher> factory, String threadPrefix) throws Exception {
+        Dispatcher dispatcher = factory.get();
+        List<Counter> counters = new ArrayList<>();
+        for (int i = 0; i < 4; i ++) counters.add(new Counter(dispatcher));
+        // Each posts to the next, so actors also post from the dispatcher's threads
+        for (int round = 0; round < 1000; round ++)
+            for (int i = 0; i < counters.size(); i ++) counters.get(i).post("forward", counters.get((i + 1) % counters.size()), 1);
+        // Once all have forwarded, all the adds are queued ahead of the next ask
+        for (Counter c : counters) c.ask("val").get(5, TimeUnit.SECONDS);
+        for (Counter c : counters) {
+            assertEquals(2000, c.<Integer>ask("val").get(5, TimeUnit.SECONDS));
+            for (String t : c.threads) assertTrue(t.startsWith(threadPrefix), t);
+        }
+        dispatcher.close();
+        assertTrue(dispatcher.awaitTermination(Duration.ZERO));
+        // Messages posted after close stay queued
+        Counter late = counters.get(0);
+        CompletableFuture<Integer> value = late.ask("val");
+        assertFalse(value.isDone());
+    }
+
+    @Test
+    void forkJoinRunsActors() throws Exception {
+        runsActors(() -> Dispatcher.forkJoin(2), "actor-fj-");
+    }
+
+    @Test
+    void fixedRunsActors() throws Exception {
+        runsActors(() -> Dispatcher.fixed(2), "actor-fixed-");
+    }
+
+    @Test
+    void virtualThreadsRunActors() throws Exception {
+        runsActors(Dispatcher::virtualThreads, "actor-virtual-");
+    }
+
+    @Test
+    void pinnedRunsActors() throws Exception {
+        runsActors(() -> Dispatcher.pinned("test-pinned"), "test-pinned");
+    }
+
+    @Test
+    void executorServiceRunsActors() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(r -> new Thread(r, "test-executor-" + count.getAndIncrement()));
+        runsActors(() -> Dispatcher.of(executor), "test-executor-");
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    void closeInterruptedInterruptsRunningActors() throws Exception {
+        Dispatcher dispatcher = Dispatcher.fixed(1);
+        Counter stuck = new Counter(dispatcher);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        stuck.post("block", started, interrupted);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> closer = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            dispatcher.close();
+            closer.complete(Thread.currentThread().isInterrupted());
+        });
+        t.start();
+        // Well before the close timeout
+        Thread.sleep(50);
+        assertFalse(closer.isDone());
+        t.interrupt();
+        assertTrue(interrupted.get(5, TimeUnit.SECONDS));
+        assertTrue(closer.get(5, TimeUnit.SECONDS), "Interrupt status restored");
+        assertTrue(dispatcher.awaitTermination(Duration.ZERO));
+    }
+
+    @Test
+    void shutdownNowInterruptsRunningActors() throws Exception {
+        Dispatcher dispatcher = Dispatcher.virtualThreads();
+        Counter stuck = new Counter(dispatcher);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+        stuck.post("block", started, interrupted);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdownNow();
+        assertTrue(interrupted.get(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.awaitTermination(Duration.ofSeconds(5)));
+    }
+}
@@ -0,0 +1,195 @@
+package Playground;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.DoubleBinaryOperator;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Compiled expressions checked against a direct interpreter of the same grammar.
+ */
+class ExpressionTest {
+    /*
+     * Evaluates the text as it parses it, without sharing or folding anything.
+     */
+    private static final class Interpreter {
+        private final String source;
+        private final double x, y;
+        private int position;
+
+        private Interpreter(String source, double x, double y) {
+            this.source = source;
+            this.x = x;
+            this.y = y;
+        }
+
+        static double evaluate(String source, double x, double y) {
+            Interpreter i = new Interpreter(source, x, y);
+            double v = i.sum();
+            if (i.accept('=')) v -= i.sum();
+            return v;
+        }
+
+        private double sum() {
+            double v = product();
+            while (true) {
+                if (accept('+')) v += product();
+                else if (accept('-')) v -= product();
+                else return v;
+            }
+        }
+
+        private double product() {
+            double v = unary();
+            while (true) {
+                if (accept('*')) v *= unary();
+                else if (accept('/')) v /= unary();
+                else return v;
+            }
+        }
+
+        private double unary() {
+            if (accept('-')) return -unary();
+            if (accept('+')) return unary();
+            double v = atom();
+            return accept('^') ? Math.pow(v, unary()) : v;
+        }
+
+        private double atom() {
+            skip();
+            if (accept('(')) {
+                double v = sum();
+                accept(')');
+                return v;
+            }
+            int start = position;
+            char c = source.charAt(position);
+            if (Character.isDigit(c) || c == '.') {
+                while (position < source.length() && "0123456789.eE".indexOf(source.charAt(position)) >= 0) {
+                    char d = source.charAt(position ++);
+                    if ((d == 'e' || d == 'E') && "+-".indexOf(source.charAt(position)) >= 0) position ++;
+                }
+                return Double.parseDouble(source.substring(start, position));
+            }
+            while (position < source.length() && Character.isLetterOrDigit(source.charAt(position))) position ++;
+            String name = source.substring(start, position);
+            if (accept('(')) {
+                double a = sum();
+                try {
+                    if (accept(',')) {
+                        double b = sum();
+                        accept(')');
+                        return (double) Math.class.getMethod(name, double.class, double.class).invoke(null, a, b);
+                    }
+                    accept(')');
+                    return (double) Math.class.getMethod(name, double.class).invoke(null, a);
+                } catch (ReflectiveOperationException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            switch (name) {
+                case "x": return x;
+                case "y": return y;
+                case "pi": return Math.PI;
+                default: return Math.E;
+            }
+        }
+
+        private boolean accept(char c) {
+            skip();
+            if (position < source.length() && source.charAt(position) == c) {
+                position ++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skip() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) position ++;
+        }
+    }
+
+    private static final String[] UNARY = {"sin", "cos", "tanh", "sqrt", "abs", "exp", "log1p", "cbrt"};
+    private static final String[] BINARY = {"atan2", "hypot", "max", "min", "pow"};
+    private static final String[] LEAVES = {"x", "y", "pi", "e", "2", "0.5", "1e-3", "3.25E1", ".75", "1"};
+
+    /**
+     * A random expression, reusing earlier subexpressions so that parsing shares them.
+     */
+    private static String random(SplittableRandom r, int depth, List<String> made) {
+        String e;
+        if (!made.isEmpty() && r.nextInt(5) == 0) return made.get(r.nextInt(made.size()));
+        if (depth == 0) return LEAVES[r.nextInt(LEAVES.length)];
+        switch (r.nextInt(8)) {
+            case 0: e = "-" + random(r, depth - 1, made); break;
+            case 1: e = random(r, depth - 1, made) + " + " + random(r, depth - 1, made); break;
+            case 2: e = random(r, depth - 1, made) + " - (" + random(r, depth - 1, made) + ")"; break;
+            case 3: e = "(" + random(r, depth - 1, made) + ") * (" + random(r, depth - 1, made) + ")"; break;
+            case 4: e = "(" + random(r, depth - 1, made) + ") / (" + random(r, depth - 1, made) + ")"; break;
+            case 5: e = "(" + random(r, depth - 1, made) + ")^" + (r.nextBoolean() ? "2" : "(" + random(r, depth - 1, made) + ")"); break;
+            case 6: e = UNARY[r.nextInt(UNARY.length)] + "(" + random(r, depth - 1, made) + ")"; break;
+            default: e = BINARY[r.nextInt(BINARY.length)] + "(" + random(r, depth - 1, made) + ", " + random(r, depth - 1, made) + ")";
+        }
+        made.add(e);
+        return e;
+    }
+
+    private static void assertMatches(String source, double x, double y) {
+        double expected = Interpreter.evaluate(source, x, y), actual = Expression.compile(source).applyAsDouble(x, y);
+        if (Double.compare(expected, actual) != 0 && Math.abs(expected - actual) > 1e-12 * Math.abs(expected))
+            fail(source + " at " + x + ", " + y + ": " + actual + " instead of " + expected);
+    }
+
+    @Test
+    void matchesTheInterpreter() {
+        SplittableRandom r = new SplittableRandom(42);
+        for (int i = 0; i < 500; i ++) {
+            String source = random(r, 1 + r.nextInt(5), new ArrayList<>());
+            DoubleBinaryOperator f = Expression.compile(source);
+            for (int j = 0; j < 20; j ++) {
+                double x = r.nextDouble(-10, 10), y = r.nextDouble(-10, 10);
+                double expected = Interpreter.evaluate(source, x, y), actual = f.applyAsDouble(x, y);
+                if (Double.compare(expected, actual) != 0 && Math.abs(expected - actual) > 1e-12 * Math.abs(expected))
+                    fail(source + " at " + x + ", " + y + ": " + actual + " instead of " + expected);
+            }
+        }
+    }
+
+    @Test
+    void followsPrecedence() {
+        for (String source : new String[] {"-x^2", "x^y^0.5", "2^-x", "x - y - 1", "x / y / 2", "x + y * 2 = y", "--x", "+x"})
+            assertMatches(source, 1.5, 2.5);
+        assertEquals(-4, Expression.compile("-x^2").applyAsDouble(2, 0));
+        assertEquals(0, Expression.compile("sin(x) = y").applyAsDouble(1, Math.sin(1)));
+        assertEquals(3, Expression.potential("x = y").applyAsDouble(1, 4));
+    }
+
+    @Test
+    void sharesLocalsBeyondByteIndexes() {
+        // 200 shared subexpressions of two slots each need wide loads and stores
+        StringBuilder source = new StringBuilder("0");
+        for (int i = 0; i < 200; i ++) source.append(" + sin(x + ").append(i).append(") * sin(x + ").append(i).append(")");
+        assertMatches(source.toString(), 0.3, 0);
+    }
+
+    @Test
+    void rejectsMalformedExpressions() {
+        for (String source : new String[] {"", "x +", "(x", "x)", "2e", "1.2.3", "z", "foo(x)", "sin(x, y)", "x = y = 1"})
+            assertThrows(IllegalArgumentException.class, () -> Expression.compile(source), source);
+    }
+
+    @Test
+    void usesEveryDoubleFunctionOfMath() {
+        for (Method m : Math.class.getMethods()) {
+            if (m.getReturnType() != double.class || m.getParameterCount() > 2) continue;
+            if (m.getParameterCount() == 1 && m.getParameterTypes()[0] == double.class)
+                assertMatches(m.getName() + "(x)", 0.7, 0);
+            else if (m.getParameterCount() == 2 && m.getParameterTypes()[0] == double.class && m.getParameterTypes()[1] == double.class)
+                assertMatches(m.getName() + "(x, y)", 0.7, 1.3);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+    /**
+     * A client frame: masked with the given mask unless it is 0.
+     */
+    private static byte[] frame(boolean fin, int opcode, byte[] payload, int mask) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((fin ? 0x80 : 0) | opcode);
+        int m = mask != 0 ? 0x80 : 0;
+        if (payload.length <= 125) {
+            out.write(m | payload.length);
+        } else if (payload.length <= 65535) {
+            out.write(m | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(m | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) out.write((int) ((long) payload.length >>> shift));
+        }
+        if (mask != 0) for (int shift = 24; shift >= 0; shift -= 8) out.write(mask >>> shift);
+        for (int i = 0; i < payload.length; i ++) out.write(mask == 0 ? payload[i] : payload[i] ^ mask >>> 24 - 8 * (i & 3));
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] a = new byte[b.remaining()];
+        b.duplicate().get(a);
+        return a;
+    }
+
+    private static byte[] random(SplittableRandom r, int length) {
+        byte[] b = new byte[length];
+        r.nextBytes(b);
+        return b;
+    }
+
+    @Test
+    void unmasksEveryLengthAndDirection() throws IOException {
+        SplittableRandom r = new SplittableRandom(1);
+        for (boolean direct : new boolean[] {false, true}) {
+            for (int length : new int[] {0, 1, 7, 8, 9, 125, 126, 127, 1000, 65535, 65536, 100_000}) {
+                byte[] payload = random(r, length);
+                FrameDecoder d = new FrameDecoder(1 << 20, direct);
+                ByteBuffer in = ByteBuffer.wrap(frame(true, 0x2, payload, r.nextInt() | 1));
+                ByteBuffer out = d.decode(in);
+                assertNotNull(out, "length " + length);
+                assertArrayEquals(payload, bytes(out), "length " + length);
+                assertFalse(in.hasRemaining());
+                assertTrue(d.fin());
+                assertTrue(d.masked());
+                assertEquals(0x2, d.opcode());
+            }
+        }
+    }
+
+    @Test
+    void decodesWhateverArrives() throws IOException {
+        SplittableRandom r = new SplittableRandom(2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] payloads = {random(r, 300), random(r, 5), new byte[0], random(r, 70_000), random(r, 13)};
+        for (int i = 0; i < payloads.length; i ++) stream.writeBytes(frame(i == payloads.length - 1, i == 0 ? 0x1 : 0x0, payloads[i], r.nextInt()));
+        byte[] all = stream.toByteArray();
+        // In pieces of every size from one byte, through a small reused buffer like the event loops'
+        for (int piece : new int[] {1, 2, 3, 5, 11, 64, 4096}) {
+            FrameDecoder d = new FrameDecoder(1 << 20, false);
+            ByteBuffer inbound = ByteBuffer.allocate(8192);
+            int frames = 0;
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            for (int sent = 0; sent < all.length; ) {
+                int n = Math.min(piece, Math.min(all.length - sent, inbound.remaining()));
+                inbound.put(all, sent, n);
+                sent += n;
+                inbound.flip();
+                for (ByteBuffer p; (p = d.decode(inbound)) != null; ) {
+                    payload.writeBytes(bytes(p));
+                    assertArrayEquals(payloads[frames], payload.toByteArray(), "frame " + frames + " in pieces of " + piece);
+                    assertEquals(frames == payloads.length - 1, d.fin());
+                    payload.reset();
+                    frames ++;
+                }
+                inbound.compact();
+            }
+            assertEquals(payloads.length, frames);
+        }
+    }
+
+    @Test
+    void acceptsUnmaskedFrames() throws IOException {
+        byte[] payload = {1, 2, 3};
+        FrameDecoder d = new FrameDecoder(1024, false);
+        assertArrayEquals(payload, bytes(d.decode(ByteBuffer.wrap(frame(true, 0x2, payload, 0)))));
+        assertFalse(d.masked());
+    }
+
+    @Test
+    void waitsForAWholeHeader() throws IOException {
+        byte[] f = frame(true, 0x2, new byte[200], 0x01020304);
+        FrameDecoder d = new FrameDecoder(1024, false);
+        // 2 bytes, 16 bit length and mask
+        for (int n = 0; n < 8; n ++) {
+            ByteBuffer in = ByteBuffer.wrap(f, 0, n);
+            assertNull(d.decode(in));
+            assertEquals(0, in.position());
+        }
+        assertNotNull(d.decode(ByteBuffer.wrap(f)));
+    }
+
+    @Test
+    void checksLengths() {
+        FrameDecoder d = new FrameDecoder(1000, false);
+        assertThrows(IOException.class, () -> d.decode(ByteBuffer.wrap(frame(true, 0x2, new byte[1001], 1))));
+        assertThrows(IOException.class, () -> new FrameDecoder(1 << 20, false).decode(ByteBuffer.wrap(frame(true, 0x2, new byte[1 << 20 | 1], 1))));
+        // A 64 bit length with the top bit set
+        byte[] negative = {(byte) 0x82, (byte) 0xff, (byte) 0x80, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> new FrameDecoder(1000, false).decode(ByteBuffer.wrap(negative)));
+        byte[] huge = {(byte) 0x82, (byte) 0xff, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> new FrameDecoder(Integer.MAX_VALUE, false).decode(ByteBuffer.wrap(huge)));
+    }
+
+    @Test
+    void checksControlFrames() throws IOException {
+        assertThrows(IOException.class, () -> new FrameDecoder(1000, false).decode(ByteBuffer.wrap(frame(true, 0x9, new byte[126], 1))));
+        assertThrows(IOException.class, () -> new FrameDecoder(1000, false).decode(ByteBuffer.wrap(frame(false, 0x8, new byte[2], 1))));
+        FrameDecoder d = new FrameDecoder(1000, false);
+        assertNotNull(d.decode(ByteBuffer.wrap(frame(true, 0xA, new byte[125], 1))));
+        assertEquals(0xA, d.opcode());
+    }
+
+    @Test
+    void unmasksFromAnyOffset() {
+        SplittableRandom r = new SplittableRandom(3);
+        int mask = r.nextInt();
+        byte[] plain = random(r, 100);
+        for (int from = 0; from < 20; from ++) {
+            byte[] masked = new byte[plain.length];
+            for (int i = 0; i < plain.length; i ++) masked[i] = (byte) (plain[i] ^ mask >>> 24 - 8 * (i & 3));
+            ByteBuffer b = ByteBuffer.wrap(masked);
+            // The bytes from 'from' on, as if they were the payload from that offset
+            FrameDecoder.unmask(b, from, plain.length, mask, from);
+            for (int i = from; i < plain.length; i ++) assertEquals(plain[i], masked[i], "from " + from + " at " + i);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package Playground;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FrameFileTest {
+    @TempDir
+    Path dir;
+
+    private static double[] points(int n, double offset) {
+        double[] p = new double[n];
+        for (int i = 0; i < n; i ++) p[i] = offset + i * 0.25;
+        return p;
+    }
+
+    @Test
+    void resumesFromTheLastFrame() throws IOException {
+        Path path = dir.resolve("run.bin");
+        try (FrameFile f = FrameFile.create(path, 5, 42)) {
+            for (int step = 1; step <= 3; step ++) f.append(step * 100, 10.0 / step, points(5, step), points(5, -step));
+        }
+        assertEquals(24 + 3 * (16 + 16 * 5), Files.size(path));
+        double[] xs = new double[5], ys = new double[5];
+        try (FrameFile f = FrameFile.resume(path, xs, ys)) {
+            assertEquals(42, f.seed());
+            assertEquals(300, f.step());
+            assertEquals(10.0 / 3, f.temperature());
+            assertArrayEquals(points(5, 3), xs);
+            assertArrayEquals(points(5, -3), ys);
+            f.append(400, 2, points(5, 4), points(5, -4));
+        }
+        try (FrameFile f = FrameFile.resume(path, xs, ys)) {
+            assertEquals(400, f.step());
+            assertArrayEquals(points(5, 4), xs);
+        }
+    }
+
+    @Test
+    void dropsATruncatedFrame() throws IOException {
+        Path path = dir.resolve("run.bin");
+        try (FrameFile f = FrameFile.create(path, 3, 7)) {
+            f.append(1, 5, points(3, 1), points(3, 2));
+            f.append(2, 4, points(3, 3), points(3, 4));
+        }
+        long complete = Files.size(path);
+        // Interrupted in the middle of the third frame
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(30));
+        }
+        double[] xs = new double[3], ys = new double[3];
+        try (FrameFile f = FrameFile.resume(path, xs, ys)) {
+            assertEquals(2, f.step());
+            assertArrayEquals(points(3, 3), xs);
+            assertArrayEquals(points(3, 4), ys);
+            assertEquals(complete, Files.size(path));
+            f.append(3, 3, points(3, 5), points(3, 6));
+        }
+        try (FrameFile f = FrameFile.resume(path, xs, ys)) {
+            assertEquals(3, f.step());
+            assertArrayEquals(points(3, 6), ys);
+        }
+    }
+
+    @Test
+    void exportsTheLastFrame() throws IOException {
+        Path path = dir.resolve("run.bin"), csv = dir.resolve("run.csv");
+        try (FrameFile f = FrameFile.create(path, 2, 0)) {
+            f.append(1, 1, new double[] {1, 2}, new double[] {3, 4});
+            f.append(2, 0.5, new double[] {0.5, -1}, new double[] {1e-3, 8});
+        }
+        FrameFile.exportCsv(path, csv);
+        assertEquals(List.of("0.5,0.001", "-1.0,8.0"), Files.readAllLines(csv));
+    }
+
+    @Test
+    void rejectsWhatIsNoFrameFile() throws IOException {
+        double[] xs = new double[4], ys = new double[4];
+        Path path = dir.resolve("run.bin");
+        FrameFile.create(path, 4, 0).close();
+        assertThrows(IOException.class, () -> FrameFile.resume(path, xs, ys), "no complete frame");
+        try (FrameFile f = FrameFile.create(path, 4, 0)) {
+            f.append(1, 1, xs, ys);
+        }
+        assertThrows(IOException.class, () -> FrameFile.resume(path, new double[5], new double[5]), "other point count");
+
+        Path text = dir.resolve("text.bin");
+        Files.writeString(text, "not a frame file at all, but long enough");
+        assertThrows(IOException.class, () -> FrameFile.resume(text, xs, ys));
+        Path empty = dir.resolve("empty.bin");
+        Files.createFile(empty);
+        assertThrows(IOException.class, () -> FrameFile.resume(empty, xs, ys));
+
+        for (int count : new int[] {0, -1, Integer.MAX_VALUE, (Integer.MAX_VALUE - 16) / 16 + 1}) {
+            Path bad = dir.resolve("count" + count + ".bin");
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            header.put("ANNL".getBytes()).putInt(1).putInt(count).putInt(0).putLong(0);
+            Files.write(bad, header.array());
+            IOException e = assertThrows(IOException.class, () -> FrameFile.resume(bad, xs, ys));
+            assertEquals(bad + " is no frame file", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+    /**
+     * The highest value in the bucket of the given one, read back below a larger maximum that would clamp it.
+     */
+    private static long equivalent(long value) {
+        Histogram h = new Histogram();
+        h.record(value);
+        h.record(Long.MAX_VALUE);
+        return h.percentile(50);
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        for (long v = 0; v < 128; v ++) assertEquals(v, equivalent(v));
+    }
+
+    @Test
+    void bucketsDoubleInWidthEveryPowerOfTwo() {
+        // 128 to 255 in buckets of 2, 256 to 511 of 4 and so on
+        assertEquals(129, equivalent(128));
+        assertEquals(129, equivalent(129));
+        assertEquals(131, equivalent(130));
+        assertEquals(255, equivalent(254));
+        assertEquals(259, equivalent(256));
+        assertEquals(259, equivalent(259));
+        assertEquals(263, equivalent(260));
+        assertEquals(1039, equivalent(1024));
+        assertEquals(Long.MAX_VALUE, equivalent(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, equivalent(Long.MAX_VALUE - (1L << 55)));
+        // Negative values count as zero
+        assertEquals(0, equivalent(-5));
+    }
+
+    @Test
+    void bucketsKeepRelativePrecision() {
+        SplittableRandom r = new SplittableRandom(1);
+        for (int i = 0; i < 10_000; i ++) {
+            long v = r.nextLong(1L << r.nextInt(8, 62));
+            long e = equivalent(v);
+            assertTrue(e >= v, v + " in a bucket up to " + e);
+            assertTrue(e - v <= v / 64, v + " in a bucket up to " + e);
+            // The highest of a bucket is its own equivalent, and the next value starts another
+            assertEquals(e, equivalent(e));
+            assertTrue(equivalent(e + 1) > e);
+        }
+    }
+
+    @Test
+    void percentilesOfAUniformRange() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.percentile(50));
+        assertEquals(0, h.mean());
+        for (int v = 1000; v > 0; v --) h.record(v);
+        assertEquals(1000, h.count());
+        assertEquals(1000, h.max());
+        assertEquals(500.5, h.mean());
+        assertEquals(1, h.percentile(0));
+        assertEquals(100, h.percentile(10));
+        assertEquals(503, h.percentile(50));
+        assertEquals(991, h.percentile(99));
+        // Clamped to the maximum rather than the top of its bucket
+        assertEquals(1000, h.percentile(99.99));
+        assertEquals(1000, h.percentile(100));
+    }
+
+    @Test
+    void addMergesAndResetClears() {
+        Histogram a = new Histogram(), b = new Histogram();
+        for (int v = 0; v < 100; v ++) a.record(v);
+        for (int v = 100; v < 200; v ++) b.record(v);
+        a.add(b);
+        assertEquals(200, a.count());
+        assertEquals(199, a.max());
+        assertEquals(99.5, a.mean());
+        assertEquals(99, a.percentile(50));
+        assertEquals(100, b.count());
+        a.reset();
+        assertEquals(0, a.count());
+        assertEquals(0, a.max());
+        assertEquals(0, a.percentile(99));
+    }
+}
@@ -0,0 +1,138 @@
+package net.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+class PerMessageDeflateTest {
+    private static byte[] text(int i) {
+        return ("{\"message\": " + i + ", \"text\": \"" + "the quick brown fox ".repeat(20) + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decompresses as the client would receive it, in fragments of the given size.
+     */
+    private static byte[] decompress(PerMessageDeflate p, byte[] compressed, int fragment, int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int from = 0;
+        do {
+            int n = Math.min(fragment, compressed.length - from);
+            out.writeBytes(p.decompress(ByteBuffer.wrap(compressed, from, n), from + n == compressed.length, max));
+            from += n;
+        } while (from < compressed.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    void negotiatesTheFirstAcceptableOffer() {
+        PerMessageDeflate p = PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", true);
+        assertNotNull(p);
+        assertFalse(p.serverNoContextTakeover);
+        assertFalse(p.clientNoContextTakeover);
+        assertEquals("permessage-deflate", p.response());
+        p.release();
+
+        p = PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate; client_no_context_takeover; server_max_window_bits=\"15\"", true);
+        assertNotNull(p);
+        assertFalse(p.serverNoContextTakeover);
+        assertTrue(p.clientNoContextTakeover);
+        assertEquals("permessage-deflate; client_no_context_takeover; server_max_window_bits=15", p.response());
+        p.release();
+
+        p = PerMessageDeflate.negotiate("x-webkit-deflate-frame, permessage-deflate", false);
+        assertNotNull(p);
+        assertTrue(p.serverNoContextTakeover);
+        assertTrue(p.clientNoContextTakeover);
+        assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", p.response());
+        p.release();
+    }
+
+    @Test
+    void declinesWhatItCannotHonour() {
+        for (String offers : new String[] {
+                "", "x-webkit-deflate-frame", "permessage-deflate; server_max_window_bits=12",
+                "permessage-deflate; server_max_window_bits", "permessage-deflate; client_max_window_bits=7",
+                "permessage-deflate; client_max_window_bits=16", "permessage-deflate; server_no_context_takeover=1",
+                "permessage-deflate; client_no_context_takeover; client_no_context_takeover", "permessage-deflate; unknown"})
+            assertNull(PerMessageDeflate.negotiate(offers, true), offers);
+    }
+
+    @Test
+    void roundTripsWithContextTakeover() throws IOException {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", true);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", true);
+        try {
+            int first = 0;
+            for (int i = 0; i < 20; i ++) {
+                byte[] message = text(i), compressed = server.compress(message);
+                assertNotNull(compressed);
+                if (i == 0) first = compressed.length;
+                // Later messages refer back to earlier ones
+                else assertTrue(compressed.length < first, "message " + i);
+                assertArrayEquals(message, decompress(client, compressed, i % 2 == 0 ? compressed.length : 3, 1 << 20), "message " + i);
+            }
+            // Too short to get any smaller, but the client's context must still see it
+            byte[] empty = server.compress(new byte[0]);
+            assertNotNull(empty);
+            assertArrayEquals(new byte[0], decompress(client, empty, 1, 1 << 20));
+            assertArrayEquals(text(99), decompress(client, server.compress(text(99)), 7, 1 << 20));
+        } finally {
+            server.release();
+            client.release();
+        }
+    }
+
+    @Test
+    void roundTripsWithoutContextTakeover() throws IOException {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", false);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", false);
+        try {
+            for (int i = 0; i < 20; i ++) {
+                byte[] message = text(i), compressed = server.compress(message);
+                assertArrayEquals(PerMessageDeflate.compressShared(message), compressed);
+                assertArrayEquals(message, decompress(client, compressed, 5, 1 << 20), "message " + i);
+            }
+            byte[] noise = new byte[1000];
+            new SplittableRandom(1).nextBytes(noise);
+            assertNull(server.compress(noise));
+            assertNull(PerMessageDeflate.compressShared(new byte[0]));
+        } finally {
+            server.release();
+            client.release();
+        }
+    }
+
+    @Test
+    void limitsWhatAMessageInflatesTo() throws IOException {
+        byte[] message = new byte[100_000];
+        byte[] compressed = PerMessageDeflate.compressShared(message);
+        assertTrue(compressed.length < 1000);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", false);
+        try {
+            assertArrayEquals(message, decompress(client, compressed, compressed.length, message.length));
+            assertThrows(IOException.class, () -> decompress(client, compressed, compressed.length, message.length - 1));
+            // Counted across the fragments of the message
+            PerMessageDeflate other = PerMessageDeflate.negotiate("permessage-deflate", false);
+            assertThrows(IOException.class, () -> decompress(other, compressed, 10, message.length - 1));
+            other.release();
+        } finally {
+            client.release();
+        }
+    }
+
+    @Test
+    void rejectsCorruptPayloads() {
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", true);
+        try {
+            // A block of the reserved type 3
+            assertThrows(IOException.class, () -> client.decompress(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0xff, 0}), true, 1000));
+        } finally {
+            client.release();
+        }
+    }
+}
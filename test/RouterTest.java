@@ -0,0 +1,139 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+class RouterTest {
+    private static final Dispatcher dispatcher = Dispatcher.fixed(4);
+
+    public interface Recorder {
+        void record(Object key, int n);
+    }
+
+    static class Routee extends Actor implements Recorder {
+        final List<Integer> received = new ArrayList<>();
+        final List<Object> keys = new ArrayList<>();
+
+        Routee() {
+            super(dispatcher);
+        }
+
+        @Override
+        public void record(Object key, int n) {
+            keys.add(key);
+            received.add(n);
+        }
+
+        void hold(CountDownLatch release) throws InterruptedException {
+            release.await();
+        }
+
+        List<Integer> received() {
+            return new ArrayList<>(received);
+        }
+
+        List<Object> keys() {
+            return new ArrayList<>(keys);
+        }
+    }
+
+    @AfterAll
+    static void shutdown() {
+        dispatcher.close();
+    }
+
+    private static List<Integer> received(Routee r) throws Exception {
+        return r.<List<Integer>>ask("received").get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void roundRobinTakesTurns() throws Exception {
+        Router<Routee> router = Router.of(Router.Strategy.ROUND_ROBIN, 3, Routee::new);
+        for (int i = 0; i < 9; i ++) assertSame(router.routees().get(i % 3), router.route(null));
+        for (int i = 0; i < 9; i ++) router.route(null, Recorder.class).record(null, i);
+        for (int r = 0; r < 3; r ++) assertEquals(List.of(r, r + 3, r + 6), received(router.routees().get(r)));
+    }
+
+    @Test
+    void smallestMailboxAvoidsTheBusy() throws Exception {
+        Router<Routee> router = Router.of(Router.Strategy.SMALLEST_MAILBOX, 3, Routee::new);
+        Routee busy = router.routees().get(0);
+        CountDownLatch release = new CountDownLatch(1);
+        busy.post("hold", release);
+        for (int i = 0; i < 5; i ++) busy.post("record", null, -1);
+        try {
+            for (int i = 0; i < 30; i ++) assertNotSame(busy, router.route(null));
+        } finally {
+            release.countDown();
+        }
+        assertEquals(List.of(-1, -1, -1, -1, -1), received(busy));
+    }
+
+    @Test
+    void consistentHashingKeepsKeysTogether() throws Exception {
+        Router<Routee> router = Router.of(Router.Strategy.CONSISTENT_HASHING, 4, Routee::new);
+        for (int i = 0; i < 1000; i ++) router.route("key" + i % 50, Recorder.class).record("key" + i % 50, i);
+        for (Routee r : router.routees()) {
+            List<Integer> received = received(r);
+            List<Object> keys = r.<List<Object>>ask("keys").get(5, TimeUnit.SECONDS);
+            for (int i = 0; i < received.size(); i ++) {
+                assertSame(r, router.route(keys.get(i)));
+                // In the order sent, per key and so per routee
+                if (i > 0) assertTrue(received.get(i - 1) < received.get(i));
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> router.route(null));
+    }
+
+    @Test
+    void consistentHashingSpreadsKeys() {
+        Router<Routee> router = Router.of(Router.Strategy.CONSISTENT_HASHING, 8, Routee::new);
+        int[] counts = new int[8];
+        for (int i = 0; i < 80_000; i ++) counts[router.routees().indexOf(router.route(i))] ++;
+        for (int c : counts) assertTrue(c > 5_000 && c < 15_000, "Routee got " + c + " of 80000 keys");
+    }
+
+    @Test
+    void consistentHashingMovesFewKeys() {
+        List<Routee> routees = new ArrayList<>();
+        for (int i = 0; i < 5; i ++) routees.add(new Routee());
+        Router<Routee> four = new Router<>(Router.Strategy.CONSISTENT_HASHING, routees.subList(0, 4));
+        Router<Routee> five = new Router<>(Router.Strategy.CONSISTENT_HASHING, routees);
+        int moved = 0;
+        for (int i = 0; i < 10_000; i ++) {
+            Routee before = four.route(i), after = five.route(i);
+            if (before != after) {
+                moved ++;
+                // Only to the new routee
+                assertSame(routees.get(4), after);
+            }
+        }
+        assertTrue(moved > 1_000 && moved < 3_000, moved + " of 10000 keys moved");
+    }
+
+    @Test
+    void broadcastReachesEveryRoutee() throws Exception {
+        Router<Routee> router = Router.of(Router.Strategy.BROADCAST, 3, Routee::new);
+        assertTrue(router.post(null, "record", "all", 7));
+        for (Routee r : router.routees()) assertEquals(List.of(7), received(r));
+        assertThrows(IllegalStateException.class, () -> router.route(null));
+        assertThrows(IllegalStateException.class, () -> router.route(null, Recorder.class));
+    }
+
+    @Test
+    void proxiesAreMadeOnce() {
+        Router<Routee> router = Router.of(Router.Strategy.ROUND_ROBIN, 2, Routee::new);
+        List<Recorder> all = router.all(Recorder.class);
+        assertEquals(2, all.size());
+        assertNotSame(all.get(0), all.get(1));
+        assertEquals(all, router.all(Recorder.class));
+        assertSame(all.get(0), router.route(null, Recorder.class));
+        assertSame(all.get(1), router.route(null, Recorder.class));
+        assertThrows(IllegalArgumentException.class, () -> new Router<Routee>(Router.Strategy.ROUND_ROBIN, List.of()));
+    }
+}
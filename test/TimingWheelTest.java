@@ -0,0 +1,130 @@
+package parallel.actor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    @Test
+    void firesInDeadlineOrderOverManyRounds() throws Exception {
+        // 8 buckets of 10ms go round every 80ms, well below the longest delay
+        try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(10), 8, "test-wheel")) {
+            SplittableRandom r = new SplittableRandom(1);
+            int n = 200;
+            long tick = TimeUnit.MILLISECONDS.toNanos(10);
+            long[] deadlines = new long[n], fired = new long[n];
+            CountDownLatch done = new CountDownLatch(n);
+            // Only the wheel thread runs tasks
+            List<Integer> order = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i ++) {
+                int id = i;
+                long delay = r.nextLong(TimeUnit.MILLISECONDS.toNanos(500));
+                deadlines[i] = System.nanoTime() - start + delay;
+                wheel.schedule(() -> {
+                    fired[id] = System.nanoTime() - start;
+                    order.add(id);
+                    done.countDown();
+                }, delay, TimeUnit.NANOSECONDS);
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < n; i ++) {
+                assertTrue(fired[i] >= deadlines[i], "Fired " + (deadlines[i] - fired[i]) + " ns early");
+                // Up to a tick late and some for scheduling, but not a round
+                assertTrue(fired[i] - deadlines[i] < 6 * tick, "Fired " + (fired[i] - deadlines[i]) + " ns late");
+            }
+            // In order but for those in the same tick
+            for (int i = 1; i < n; i ++) assertTrue(deadlines[order.get(i - 1)] < deadlines[order.get(i)] + tick + tick / 10);
+        }
+    }
+
+    @Test
+    void firesPastDeadlinesAtTheNextTick() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(5), 8, "test-wheel")) {
+            CompletableFuture<Void> zero = new CompletableFuture<>(), negative = new CompletableFuture<>();
+            TimingWheel.Timeout t = wheel.schedule(() -> zero.complete(null), Duration.ZERO);
+            wheel.schedule(() -> negative.complete(null), -1, TimeUnit.SECONDS);
+            zero.get(1, TimeUnit.SECONDS);
+            negative.get(1, TimeUnit.SECONDS);
+            assertTrue(t.isExpired());
+            assertFalse(t.cancel());
+            assertFalse(t.isCancelled());
+        }
+    }
+
+    @Test
+    void cancelledTimeoutsNeverFire() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(5), 8, "test-wheel")) {
+            CountDownLatch fired = new CountDownLatch(1);
+            List<TimingWheel.Timeout> timeouts = new ArrayList<>();
+            // Cancelled both before and after the wheel took them in
+            for (int i = 0; i < 20; i ++) timeouts.add(wheel.schedule(fired::countDown, 20 + i * 10, TimeUnit.MILLISECONDS));
+            for (int i = 0; i < 10; i ++) assertTrue(timeouts.get(i).cancel());
+            Thread.sleep(15);
+            for (int i = 10; i < 20; i ++) assertTrue(timeouts.get(i).cancel());
+            for (TimingWheel.Timeout t : timeouts) {
+                assertTrue(t.isCancelled());
+                assertFalse(t.cancel());
+            }
+            assertFalse(fired.await(300, TimeUnit.MILLISECONDS));
+            for (TimingWheel.Timeout t : timeouts) assertFalse(t.isExpired());
+        }
+    }
+
+    @Test
+    void countsTimeoutsUntilTheyFireOrAreCancelled() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(5), 8, "test-wheel")) {
+            CountDownLatch fired = new CountDownLatch(2);
+            TimingWheel.Timeout cancelled = wheel.schedule(fired::countDown, 1, TimeUnit.SECONDS);
+            wheel.schedule(fired::countDown, 10, TimeUnit.MILLISECONDS);
+            wheel.schedule(fired::countDown, 20, TimeUnit.MILLISECONDS);
+            assertEquals(3, wheel.pending());
+            cancelled.cancel();
+            assertFalse(cancelled.cancel());
+            assertEquals(2, wheel.pending());
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertEquals(0, wheel.pending());
+        }
+    }
+
+    @Test
+    void keepsTickingAfterAFailingTask() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(Duration.ofMillis(5), 8, "test-wheel")) {
+            CompletableFuture<Void> after = new CompletableFuture<>();
+            wheel.schedule(() -> {
+                throw new IllegalStateException("Thrown by the test");
+            }, Duration.ZERO);
+            wheel.schedule(() -> after.complete(null), Duration.ofMillis(20));
+            after.get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void closeStopsTheWheel() throws Exception {
+        TimingWheel wheel = new TimingWheel(Duration.ofMillis(5), 8, "test-wheel-closed");
+        CountDownLatch fired = new CountDownLatch(1);
+        TimingWheel.Timeout t = wheel.schedule(fired::countDown, Duration.ofMillis(50));
+        wheel.close();
+        assertThrows(IllegalStateException.class, () -> wheel.schedule(fired::countDown, Duration.ZERO));
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(t.isExpired());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().equals("test-wheel-closed"))) {
+            assertTrue(System.nanoTime() - deadline < 0, "Wheel thread still running");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void rejectsBadArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(Duration.ZERO, 8, "test-wheel"));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(Duration.ofMillis(-1), 8, "test-wheel"));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(Duration.ofMillis(1), 0, "test-wheel"));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(Duration.ofMillis(1), (1 << 30) + 1, "test-wheel"));
+    }
+}
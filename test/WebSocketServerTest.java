@@ -0,0 +1,657 @@
+package net.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/*
+ * Both transports: the blocking one for no event loops, the non-blocking one otherwise.
+ */
+class WebSocketServerTest {
+    private static final String REQUEST = "GET /chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n";
+
+    private WebSocketServer server;
+
+    private WebSocketServer start(int eventLoops) throws IOException {
+        server = new WebSocketServer(0, new PrintStream(OutputStream.nullOutputStream()), eventLoops);
+        server.setHandshakeTimeout(Duration.ofMillis(500));
+        return server;
+    }
+
+    @AfterEach
+    void stop() {
+        if (server != null) server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket("127.0.0.1", server.getPort());
+        s.setSoTimeout(5000);
+        return s;
+    }
+
+    /**
+     * A client with a small receive buffer, which fills up soon when the client stops reading.
+     */
+    private Socket connect(int receiveBuffer) throws IOException {
+        Socket s = new Socket();
+        s.setReceiveBufferSize(receiveBuffer);
+        s.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+        s.setSoTimeout(5000);
+        return s;
+    }
+
+    /**
+     * Sends the request with a key of the client's own and waits until its shard knows the connection.
+     *
+     * @return the id of the connection
+     */
+    private String handshake(Socket s, int client) throws Exception {
+        s.getOutputStream().write(REQUEST.replace("dGhlIHNhbXBsZSBub25jZQ==", "client-" + client).getBytes(StandardCharsets.US_ASCII));
+        StringBuilder head = new StringBuilder();
+        for (int c; !head.toString().endsWith("\r\n\r\n") && (c = s.getInputStream().read()) >= 0; ) head.append((char) c);
+        String id = null;
+        for (String line : head.toString().split("\r\n")) if (line.startsWith("Sec-WebSocket-Accept: ")) id = line.substring(22);
+        assertNotNull(id, head.toString());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!server.isWritable(id)) {
+            assertTrue(System.nanoTime() - deadline < 0, "Connection not open");
+            Thread.sleep(10);
+        }
+        return id;
+    }
+
+    private static String statusLine(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        for (int c; !head.toString().endsWith("\r\n\r\n") && (c = in.read()) >= 0; ) head.append((char) c);
+        return head.toString().split("\r\n")[0];
+    }
+
+    /**
+     * Reads until the server closes the connection.
+     */
+    private static void awaitClose(InputStream in) throws IOException {
+        try {
+            while (in.read() >= 0);
+        } catch (IOException e) {
+            // Reset rather than closed
+        }
+    }
+
+    /*
+     * A frame from the server: the first byte of its header, with FIN, RSV1 and the opcode, and its payload.
+     */
+    private record Received(int head, byte[] payload) {
+    }
+
+    private static Received readFrame(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int head = data.readUnsignedByte();
+        long length = data.readUnsignedByte() & 0x7f;
+        if (length == 126) length = data.readUnsignedShort();
+        else if (length == 127) length = data.readLong();
+        byte[] payload = new byte[(int) length];
+        data.readFully(payload);
+        return new Received(head, payload);
+    }
+
+    /**
+     * A client frame up to 125 bytes long, masked with a key of zeros.
+     */
+    private static byte[] clientFrame(int head, byte[] payload) {
+        byte[] frame = new byte[6 + payload.length];
+        frame[0] = (byte) head;
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(payload, 0, frame, 6, payload.length);
+        return frame;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void echoesAfterTheHandshake(int eventLoops) throws Exception {
+        start(eventLoops);
+        BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+        server.setOnText((id, text) -> {
+            texts.add(text);
+            server.send(id, "re:" + text);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect()) {
+            s.getOutputStream().write(REQUEST.getBytes(StandardCharsets.US_ASCII));
+            // "hi" masked with 1, 2, 3, 4
+            s.getOutputStream().write(new byte[] {(byte) 0x81, (byte) 0x82, 1, 2, 3, 4, 'h' ^ 1, 'i' ^ 2});
+            InputStream in = s.getInputStream();
+            assertEquals("HTTP/1.1 101 Switching Protocols", statusLine(in));
+            assertEquals("hi", texts.poll(5, TimeUnit.SECONDS));
+            byte[] frame = in.readNBytes(7);
+            assertEquals((byte) 0x81, frame[0]);
+            assertEquals(5, frame[1]);
+            assertEquals("re:hi", new String(frame, 2, 5, StandardCharsets.UTF_8));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void completesRequestsQueuedAtClose(int eventLoops) throws Exception {
+        start(eventLoops);
+        CompletableFuture<String> opened = new CompletableFuture<>();
+        server.setOnOpen(id -> {
+            opened.complete(id);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect()) {
+            s.getOutputStream().write(REQUEST.getBytes(StandardCharsets.US_ASCII));
+            String id = opened.get(5, TimeUnit.SECONDS);
+            List<CompletableFuture<Boolean>> requests = new ArrayList<>();
+            byte[] payload = new byte[16 << 10];
+            for (int i = 0; i < 500; i ++) {
+                requests.add(server.sendAsync(id, payload));
+                if (i == 100) requests.add(server.closeAsync(id));
+            }
+            for (CompletableFuture<Boolean> r : requests) {
+                try {
+                    r.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertInstanceOf(IllegalStateException.class, e.getCause());
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void refusesOversizedAndInvalidRequests(int eventLoops) throws Exception {
+        start(eventLoops).start();
+        try (Socket s = connect()) {
+            s.getOutputStream().write(("GET / HTTP/1.1\r\nX: " + "a".repeat(9000) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 431 Request Header Fields Too Large", statusLine(s.getInputStream()));
+        }
+        try (Socket s = connect()) {
+            s.getOutputStream().write("GET / HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 400 Bad Request", statusLine(s.getInputStream()));
+        }
+        try (Socket s = connect()) {
+            s.getOutputStream().write("POST / HTTP/1.1\r\nSec-WebSocket-Key: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 400 Bad Request", statusLine(s.getInputStream()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void closesSilentHandshakeAtTheDeadline(int eventLoops) throws Exception {
+        start(eventLoops).start();
+        try (Socket s = connect()) {
+            long start = System.nanoTime();
+            awaitClose(s.getInputStream());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed >= 300 && elapsed < 2000, "Closed after " + elapsed + " ms");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3})
+    void stopClosesHandshakesInProgress(int eventLoops) throws Exception {
+        start(eventLoops).setHandshakeTimeout(Duration.ofSeconds(30));
+        server.start();
+        Socket[] sockets = new Socket[4];
+        try {
+            for (int i = 0; i < sockets.length; i ++) {
+                sockets[i] = connect();
+                sockets[i].getOutputStream().write("GET / HT".getBytes(StandardCharsets.US_ASCII));
+            }
+            // Accepted and registered by then
+            Thread.sleep(200);
+            long start = System.nanoTime();
+            server.stop();
+            for (Socket s : sockets) awaitClose(s.getInputStream());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed < 2000, "Closed after " + elapsed + " ms");
+        } finally {
+            for (Socket s : sockets) if (s != null) s.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void stopEndsItsThreads(int eventLoops) throws Exception {
+        echoesAfterTheHandshake(eventLoops);
+        server.stop();
+        assertEquals(List.of(), threadsLeft());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void failedBindStartsNoThreads(int eventLoops) throws Exception {
+        try (ServerSocket taken = new ServerSocket(0)) {
+            for (int i = 0; i < 6; i ++)
+                assertThrows(IOException.class, () -> new WebSocketServer(taken.getLocalPort(), new PrintStream(OutputStream.nullOutputStream()), eventLoops));
+        }
+        assertEquals(List.of(), threadsLeft());
+    }
+
+    /**
+     * The threads of servers still alive after up to five seconds.
+     */
+    private static List<String> threadsLeft() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<String> alive;
+        do {
+            alive = new ArrayList<>();
+            for (Thread t : Thread.getAllStackTraces().keySet()) if (t.isAlive() && t.getName().startsWith("websocket-")) alive.add(t.getName());
+        } while (!alive.isEmpty() && System.nanoTime() - deadline < 0 && sleep());
+        return alive;
+    }
+
+    private static boolean sleep() throws InterruptedException {
+        Thread.sleep(50);
+        return true;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void closesTricklingHandshakeAtTheDeadline(int eventLoops) throws Exception {
+        start(eventLoops).start();
+        try (Socket s = connect()) {
+            byte[] request = REQUEST.getBytes(StandardCharsets.US_ASCII);
+            Thread trickle = Thread.ofVirtual().start(() -> {
+                try {
+                    for (byte b : request) {
+                        s.getOutputStream().write(b);
+                        Thread.sleep(100);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed by the server
+                }
+            });
+            long start = System.nanoTime();
+            awaitClose(s.getInputStream());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            trickle.interrupt();
+            assertTrue(elapsed < 2000, "Closed after " + elapsed + " ms");
+        }
+    }
+
+    @Test
+    void dropsFramesBeforeCompressingThemWithContextTakeover() throws Exception {
+        start(2);
+        server.setCompression(true, 0, true);
+        server.setWriteQueue(0, 256 << 10, WebSocketServer.SlowConsumerPolicy.DROP);
+        CompletableFuture<String> opened = new CompletableFuture<>();
+        server.setOnOpen(id -> {
+            opened.complete(id);
+            return 0;
+        });
+        server.start();
+        try (Socket s = new Socket()) {
+            s.setReceiveBufferSize(16 << 10);
+            s.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(REQUEST.replace("\r\n\r\n", "\r\nSec-WebSocket-Extensions: permessage-deflate\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            String id = opened.get(5, TimeUnit.SECONDS);
+            // Mostly random, so they fill the socket buffers and the queue, each starting with the end of the one
+            // before, which compresses to a reference into the context
+            Random random = new Random(7);
+            List<byte[]> sent = new ArrayList<>();
+            List<CompletableFuture<Boolean>> queued = new ArrayList<>();
+            byte[] previous = new byte[8 << 10];
+            for (int i = 0; i < 200; i ++) {
+                byte[] payload = new byte[24 << 10];
+                random.nextBytes(payload);
+                payload = concat(Arrays.copyOfRange(previous, previous.length - (8 << 10), previous.length), payload);
+                previous = payload;
+                sent.add(payload);
+                queued.add(server.sendAsync(id, payload));
+            }
+            List<byte[]> expected = new ArrayList<>();
+            for (int i = 0; i < sent.size(); i ++) if (queued.get(i).get(5, TimeUnit.SECONDS)) expected.add(sent.get(i));
+            assertTrue(expected.size() < sent.size(), "No frame dropped");
+            InputStream in = s.getInputStream();
+            assertEquals("HTTP/1.1 101 Switching Protocols", statusLine(in));
+            // The client keeps its context too: every frame it gets must inflate after the ones before
+            Inflater inflater = new Inflater(true);
+            for (byte[] payload : expected) {
+                Received f = readFrame(in);
+                assertEquals(0xc2, f.head());
+                inflater.setInput(concat(f.payload(), new byte[] {0, 0, (byte) 0xff, (byte) 0xff}));
+                byte[] message = new byte[payload.length];
+                int n = 0;
+                for (int k; n < message.length && (k = inflater.inflate(message, n, message.length - n)) > 0; ) n += k;
+                assertArrayEquals(payload, message);
+            }
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void closesMessagesPastTheMaximumSize(int eventLoops) throws Exception {
+        start(eventLoops).setMaxMessageSize(1000);
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        server.setOnBinary((id, bin) -> {
+            received.add(bin);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect()) {
+            OutputStream out = s.getOutputStream();
+            out.write(REQUEST.getBytes(StandardCharsets.US_ASCII));
+            InputStream in = s.getInputStream();
+            assertEquals("HTTP/1.1 101 Switching Protocols", statusLine(in));
+            // Exactly the maximum is fine
+            out.write(clientFrame(0x02, new byte[100]));
+            for (int i = 0; i < 8; i ++) out.write(clientFrame(0x00, new byte[100]));
+            out.write(clientFrame(0x80, new byte[100]));
+            // Every frame is small, the message is not
+            out.write(clientFrame(0x02, new byte[100]));
+            try {
+                for (int i = 0; i < 20; i ++) out.write(clientFrame(0x00, new byte[100]));
+            } catch (IOException e) {
+                // Closed by the server
+            }
+            Received close = readFrame(in);
+            assertEquals(0x88, close.head());
+            assertEquals(1009, (close.payload()[0] & 0xff) << 8 | close.payload()[1] & 0xff);
+            awaitClose(in);
+            // The callback runs on the shard, possibly after the close
+            assertEquals(1000, received.poll(5, TimeUnit.SECONDS).length);
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void writeQueuePausesAndResumesAtTheWaterMarks() throws Exception {
+        start(2).setWriteQueue(64 << 10, 256 << 10, WebSocketServer.SlowConsumerPolicy.BACKPRESSURE);
+        BlockingQueue<Boolean> writable = new LinkedBlockingQueue<>();
+        server.setOnWritable((id, w) -> {
+            writable.add(w);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect(16 << 10)) {
+            String id = handshake(s, 0);
+            byte[] payload = new byte[32 << 10];
+            int sent = 0;
+            // The client reads nothing meanwhile
+            for (; server.isWritable(id); sent ++) {
+                assertTrue(sent < 1000, "Never past the high water mark");
+                assertTrue(server.sendAsync(id, payload).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(false, writable.poll(5, TimeUnit.SECONDS));
+            // Still queued past the mark, the sender was only told to hold off
+            assertTrue(server.sendAsync(id, payload).get(5, TimeUnit.SECONDS));
+            for (int i = 0; i <= sent; i ++) assertEquals(payload.length, readFrame(s.getInputStream()).payload().length);
+            assertEquals(true, writable.poll(5, TimeUnit.SECONDS));
+            assertTrue(server.isWritable(id));
+            assertNull(writable.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void slowConsumerPolicyDropsFrames() throws Exception {
+        start(2).setWriteQueue(0, 256 << 10, WebSocketServer.SlowConsumerPolicy.DROP);
+        server.start();
+        try (Socket s = connect(16 << 10)) {
+            String id = handshake(s, 0);
+            byte[] payload = new byte[32 << 10];
+            int queued = 0;
+            for (; server.sendAsync(id, payload).get(5, TimeUnit.SECONDS); queued ++) assertTrue(queued < 1000, "Nothing dropped");
+            assertTrue(queued > 0);
+            for (int i = 0; i < queued; i ++) assertEquals(payload.length, readFrame(s.getInputStream()).payload().length);
+            // Open all along, and writing again once the queue is down
+            server.send(id, "after");
+            assertArrayEquals("after".getBytes(StandardCharsets.UTF_8), readFrame(s.getInputStream()).payload());
+        }
+    }
+
+    @Test
+    void slowConsumerPolicyClosesTheConnection() throws Exception {
+        start(2).setWriteQueue(0, 256 << 10, WebSocketServer.SlowConsumerPolicy.CLOSE);
+        CompletableFuture<String> closed = new CompletableFuture<>();
+        server.setOnClose(id -> {
+            closed.complete(id);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect(16 << 10)) {
+            String id = handshake(s, 0);
+            byte[] payload = new byte[32 << 10];
+            for (int queued = 0; server.sendAsync(id, payload).get(5, TimeUnit.SECONDS); queued ++) assertTrue(queued < 1000, "Never closed");
+            assertEquals(id, closed.get(5, TimeUnit.SECONDS));
+            assertFalse(server.isWritable(id));
+            awaitClose(s.getInputStream());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void releasesBroadcastFramesOnce(int eventLoops) throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        server = new WebSocketServer(0, new PrintStream(log, true), eventLoops);
+        server.start();
+        // Alone in its size class, so the frame is the only buffer to come back to it
+        byte[] payload = new byte[300 << 10];
+        int size = payload.length + 10;
+        boolean direct = eventLoops > 0;
+        int before = BufferPool.pooled(size, direct);
+        Socket[] sockets = new Socket[8];
+        String[] ids = new String[sockets.length];
+        try {
+            for (int i = 0; i < sockets.length; i ++) {
+                sockets[i] = connect(16 << 10);
+                ids[i] = handshake(sockets[i], i);
+            }
+            server.sendAll(payload);
+            // Much of the frame is still to be written to a client that reads nothing
+            server.close(ids[0]);
+            for (int i = 1; i < sockets.length; i ++) assertEquals(payload.length, readFrame(sockets[i].getInputStream()).payload().length);
+            awaitClose(sockets[0].getInputStream());
+            // Taken from the pool if there was one, given back once
+            int expected = before == 0 ? 1 : before;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (BufferPool.pooled(size, direct) != expected && System.nanoTime() - deadline < 0) Thread.sleep(10);
+            assertEquals(expected, BufferPool.pooled(size, direct));
+            assertFalse(log.toString().contains("Exception"), log.toString());
+        } finally {
+            for (Socket s : sockets) if (s != null) s.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void eventsOfAConnectionStayInOrderOnItsShard(int eventLoops) throws Exception {
+        start(eventLoops).setShards(4);
+        Map<String, List<String>> events = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch closed = new CountDownLatch(8);
+        // Callbacks of one connection would overlap or come out of order if its events went to different shards
+        BiFunction<String, String, Integer> record = (id, event) -> {
+            if (running.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet() > 1) overlaps.incrementAndGet();
+            events.computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>())).add(event);
+            if (ThreadLocalRandom.current().nextInt(8) == 0) Thread.yield();
+            running.get(id).decrementAndGet();
+            return 0;
+        };
+        server.setOnOpen(id -> record.apply(id, "open"));
+        server.setOnText(record::apply);
+        server.setOnClose(id -> {
+            record.apply(id, "close");
+            closed.countDown();
+            return 0;
+        });
+        server.start();
+        List<Thread> clients = new ArrayList<>();
+        List<String> sent = new ArrayList<>();
+        sent.add("open");
+        for (int i = 0; i < 200; i ++) sent.add(Integer.toString(i));
+        sent.add("close");
+        for (int c = 0; c < 8; c ++) {
+            int client = c;
+            clients.add(Thread.ofVirtual().start(() -> {
+                try (Socket s = connect()) {
+                    s.getOutputStream().write(REQUEST.replace("dGhlIHNhbXBsZSBub25jZQ==", "client-" + client).getBytes(StandardCharsets.US_ASCII));
+                    for (int i = 0; i < 200; i ++) s.getOutputStream().write(clientFrame(0x81, Integer.toString(i).getBytes(StandardCharsets.US_ASCII)));
+                    s.getOutputStream().write(clientFrame(0x88, new byte[0]));
+                    awaitClose(s.getInputStream());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        for (Thread t : clients) t.join();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        assertEquals(8, events.size());
+        for (List<String> e : events.values()) assertEquals(sent, e);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void pingsSilentConnectionsAgainAfterEachPong(int eventLoops) throws Exception {
+        start(eventLoops).setHeartbeat(Duration.ofMillis(300), Duration.ofSeconds(5));
+        server.start();
+        try (Socket s = connect()) {
+            String id = handshake(s, 0);
+            InputStream in = s.getInputStream();
+            for (int i = 0; i < 3; i ++) {
+                long start = System.nanoTime();
+                Received ping = readFrame(in);
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertEquals(0x89, ping.head());
+                // The wheel ticks every 100 ms
+                assertTrue(elapsed >= 150 && elapsed < 2000, "Pinged after " + elapsed + " ms");
+                s.getOutputStream().write(clientFrame(0x8a, ping.payload()));
+            }
+            assertTrue(server.isWritable(id));
+        }
+    }
+
+    @Test
+    void pongAtThePingDeadlineKeepsOneTimer() throws Exception {
+        // The blocking transport, whose connection actor waits on a write for as long as the client reads nothing
+        start(0).setHeartbeat(Duration.ofMillis(300), Duration.ofSeconds(5));
+        server.start();
+        try (Socket s = connect(16 << 10)) {
+            String id = handshake(s, 0);
+            server.send(id, new byte[4 << 20]);
+            // Behind the write: a pong, then the heartbeat of the timer due meanwhile
+            Thread.sleep(150);
+            s.getOutputStream().write(clientFrame(0x8a, new byte[0]));
+            Thread.sleep(500);
+            assertEquals(4 << 20, readFrame(s.getInputStream()).payload().length);
+            for (int i = 0; i < 10; i ++) {
+                Thread.sleep(100);
+                assertTrue(server.pendingTimeouts() <= 1, server.pendingTimeouts() + " timeouts pending");
+            }
+            assertTrue(server.isWritable(id));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void closesWhenThePongIsLate(int eventLoops) throws Exception {
+        start(eventLoops).setHeartbeat(Duration.ofMillis(200), Duration.ofMillis(300));
+        CompletableFuture<String> closed = new CompletableFuture<>();
+        server.setOnClose(id -> {
+            closed.complete(id);
+            return 0;
+        });
+        server.start();
+        try (Socket s = connect()) {
+            String id = handshake(s, 0);
+            InputStream in = s.getInputStream();
+            assertEquals(0x89, readFrame(in).head());
+            long start = System.nanoTime();
+            Received close = readFrame(in);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(0x88, close.head());
+            assertEquals(1001, (close.payload()[0] & 0xff) << 8 | close.payload()[1] & 0xff);
+            assertEquals("Heartbeat timeout", new String(close.payload(), 2, close.payload().length - 2, StandardCharsets.UTF_8));
+            assertTrue(elapsed >= 200 && elapsed < 2000, "Closed after " + elapsed + " ms");
+            assertEquals(id, closed.get(5, TimeUnit.SECONDS));
+            awaitClose(in);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void publishesToTheSubscribersOfATopic(int eventLoops) throws Exception {
+        start(eventLoops).setShards(4);
+        server.start();
+        Socket[] sockets = new Socket[3];
+        String[] ids = new String[sockets.length];
+        try {
+            for (int i = 0; i < sockets.length; i ++) {
+                sockets[i] = connect();
+                ids[i] = handshake(sockets[i], i);
+            }
+            server.subscribe(ids[0], "news");
+            server.subscribe(ids[1], "news");
+            server.subscribe(ids[2], "sport");
+            server.publish("news", "a");
+            server.publish("sport", new byte[] {1, 2});
+            for (int i = 0; i < 2; i ++) {
+                Received f = readFrame(sockets[i].getInputStream());
+                assertEquals(0x81, f.head());
+                assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), f.payload());
+            }
+            Received f = readFrame(sockets[2].getInputStream());
+            assertEquals(0x82, f.head());
+            assertArrayEquals(new byte[] {1, 2}, f.payload());
+            server.unsubscribe(ids[1], "news");
+            server.publish("news", "b");
+            server.publish("nobody", "c");
+            assertArrayEquals("b".getBytes(StandardCharsets.UTF_8), readFrame(sockets[0].getInputStream()).payload());
+            for (int i = 1; i < 3; i ++) {
+                sockets[i].setSoTimeout(300);
+                InputStream in = sockets[i].getInputStream();
+                assertThrows(SocketTimeoutException.class, () -> in.read());
+            }
+        } finally {
+            for (Socket s : sockets) if (s != null) s.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 2})
+    void subscriberThatReadsNothingHoldsUpNoOther(int eventLoops) throws Exception {
+        // One shard for both, and far more than the slow one's mailbox and socket buffers take
+        start(eventLoops).setShards(1);
+        server.start();
+        try (Socket slow = connect(16 << 10); Socket fast = connect()) {
+            server.subscribe(handshake(slow, 0), "t");
+            server.subscribe(handshake(fast, 1), "t");
+            byte[] payload = new byte[8 << 10];
+            for (int i = 0; i < 1500; i ++) server.publish("t", payload);
+            for (int i = 0; i < 1500; i ++) assertEquals(payload.length, readFrame(fast.getInputStream()).payload().length);
+        }
+    }
+}